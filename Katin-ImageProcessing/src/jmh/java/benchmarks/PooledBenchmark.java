@@ -0,0 +1,97 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The stages in steady state: every destination is leased from the shared BufferPool and released
+// again, as the slider preview, sequence, batch and server modes do. Once warmed up the pool holds a
+// buffer of every shape, so compare gc.alloc.rate.norm with the allocating versions in ProcessingBenchmark:
+//   java -jar target/benchmarks.jar PooledBenchmark -prof gc
+// What is left per operation is bookkeeping (stage timers, tile tasks, contours), not pixels.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g", "-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector"})
+public class PooledBenchmark {
+    @Param({"1", "12", "48"})
+    public int megapixels;
+
+    // Types the stages read in place: packed ints, and the BGR bytes ImageIO decodes JPEGs into
+    @Param({"INT_RGB", "INT_ARGB", "3BYTE_BGR"})
+    public String pixelType;
+
+    private BufferedImage image;
+    private BufferedImage gray;
+    private BufferedImage gradient;
+    private Object processor;
+    private Object pool;
+    private int width;
+    private int height;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = SyntheticImages.create(megapixels * 1_000_000L, ProcessingBenchmark.imageType(pixelType), 42);
+        width = image.getWidth();
+        height = image.getHeight();
+        gray = Stages.convertToGrayscale(image);
+        gradient = Stages.applySobelEdgeDetection(gray);
+        processor = Stages.newProcessor(image);
+        pool = Stages.sharedPool();
+    }
+
+    @Benchmark
+    public BufferedImage hsb() {
+        BufferedImage result = Stages.renderHSB(processor, 40, 150, 90, Stages.lease(pool, width, height, BufferedImage.TYPE_INT_RGB));
+        Stages.release(pool, result);
+        return result;
+    }
+
+    @Benchmark
+    public BufferedImage convertToGrayscale() {
+        BufferedImage result = Stages.convertToGrayscale(image, Stages.lease(pool, width, height, BufferedImage.TYPE_BYTE_GRAY));
+        Stages.release(pool, result);
+        return result;
+    }
+
+    @Benchmark
+    public BufferedImage applySobelEdgeDetection() {
+        BufferedImage result = Stages.applySobelEdgeDetection(gray, Stages.lease(pool, width, height, BufferedImage.TYPE_BYTE_GRAY));
+        Stages.release(pool, result);
+        return result;
+    }
+
+    @Benchmark
+    public Object binarizeImage() {
+        Object mask = Stages.binarizeImage(gradient, 128, Stages.leaseMask(pool, width, height));
+        Stages.releaseMask(pool, mask);
+        return mask;
+    }
+
+    @Benchmark
+    public Object detectEdges() {
+        Object mask = Stages.detectEdges(image, 128, Stages.leaseMask(pool, width, height));
+        Stages.releaseMask(pool, mask);
+        return mask;
+    }
+
+    @Benchmark
+    public Object performColorBasedSegmentation() {
+        Object mask = Stages.performColorBasedSegmentation(image, Stages.leaseMask(pool, width, height));
+        Stages.releaseMask(pool, mask);
+        return mask;
+    }
+
+    // detectObjects end to end: findContours leases its masks and labels itself
+    @Benchmark
+    public BufferedImage detectObjects() {
+        List<?> contours = Stages.findContours(image);
+        BufferedImage result = Stages.drawContours(image, contours, Stages.lease(pool, width, height, BufferedImage.TYPE_INT_RGB));
+        Stages.release(pool, result);
+        return result;
+    }
+}
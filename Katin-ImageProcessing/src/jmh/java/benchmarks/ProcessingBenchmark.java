@@ -0,0 +1,145 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Every processing stage on synthetic images. Run with the gc profiler to see allocation rates:
+//   java -jar target/benchmarks.jar ProcessingBenchmark -prof gc
+// Narrow the matrix with e.g. -p megapixels=12 -p pixelType=INT_RGB. The forks enable the Vector API;
+// add -jvmArgsAppend -Dimageedit.simd=scalar to measure the scalar kernels instead.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g", "-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector"})
+public class ProcessingBenchmark {
+    @Param({"1", "12", "48"})
+    public int megapixels;
+
+    @Param({"INT_RGB", "3BYTE_BGR", "INT_ARGB"})
+    public String pixelType;
+
+    private BufferedImage image;
+    private BufferedImage gray;
+    private BufferedImage gradient;
+    private Object edges;
+    private Object segmentation;
+    private Object processor;
+    private int hue;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = SyntheticImages.create(megapixels * 1_000_000L, imageType(pixelType), 42);
+        gray = Stages.convertToGrayscale(image);
+        gradient = Stages.applySobelEdgeDetection(gray);
+        edges = Stages.binarizeImage(gradient, 128);
+        segmentation = Stages.performColorBasedSegmentation(image);
+        processor = Stages.newProcessor(image);
+    }
+
+    // Slider held still: the compiled colour table is reused
+    @Benchmark
+    public BufferedImage hsb() {
+        return Stages.updateHSB(processor, 40, 150, 90);
+    }
+
+    // Slider moving: every call compiles a new colour table
+    @Benchmark
+    public BufferedImage hsbNewParameters() {
+        hue = (hue + 1) % 360;
+        return Stages.updateHSB(processor, hue, 150, 90);
+    }
+
+    @Benchmark
+    public BufferedImage convertToGrayscale() {
+        return Stages.convertToGrayscale(image);
+    }
+
+    @Benchmark
+    public BufferedImage applySobelEdgeDetection() {
+        return Stages.applySobelEdgeDetection(gray);
+    }
+
+    @Benchmark
+    public Object binarizeImage() {
+        return Stages.binarizeImage(gradient, 128);
+    }
+
+    // Grayscale, Sobel and binarize fused, as detectObjects runs them
+    @Benchmark
+    public Object detectEdges() {
+        return Stages.detectEdges(image, 128);
+    }
+
+    @Benchmark
+    public Object performColorBasedSegmentation() {
+        return Stages.performColorBasedSegmentation(image);
+    }
+
+    @Benchmark
+    public Object findObjects() {
+        return Stages.findObjects(edges, segmentation, 0.75);
+    }
+
+    @Benchmark
+    public BufferedImage detectObjects() {
+        return Stages.detectObjects(image);
+    }
+
+    static int imageType(String name) {
+        switch (name) {
+            case "INT_RGB":
+                return BufferedImage.TYPE_INT_RGB;
+            case "INT_ARGB":
+                return BufferedImage.TYPE_INT_ARGB;
+            case "3BYTE_BGR":
+                return BufferedImage.TYPE_3BYTE_BGR;
+            case "4BYTE_ABGR":
+                return BufferedImage.TYPE_4BYTE_ABGR;
+            case "BYTE_GRAY":
+                return BufferedImage.TYPE_BYTE_GRAY;
+            default:
+                throw new IllegalArgumentException("Unknown pixel type: " + name);
+        }
+    }
+}
+
+// Deterministic test pictures: a smooth background with scattered solid shapes, so the edge,
+// segmentation and outline stages all have realistic amounts of work
+final class SyntheticImages {
+    private SyntheticImages() {
+    }
+
+    static BufferedImage create(long pixels, int type, long seed) {
+        int width = (int) Math.round(Math.sqrt(pixels * 4.0 / 3.0));
+        int height = (int) Math.max(1, pixels / width);
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(230, 235, 240), width, height, new Color(250, 245, 225)));
+        g.fillRect(0, 0, width, height);
+
+        Random random = new Random(seed);
+        int shapes = (int) Math.max(8, pixels / 40_000);
+        int scale = Math.max(8, Math.min(width, height) / 12);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        for (int i = 0; i < shapes; i++) {
+            g.setColor(new Color(random.nextInt(200), random.nextInt(200), random.nextInt(200)));
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            int w = scale / 4 + random.nextInt(scale);
+            int h = scale / 4 + random.nextInt(scale);
+            if (random.nextBoolean()) {
+                g.fillOval(x, y, w, h);
+            } else {
+                g.fillRect(x, y, w, h);
+            }
+        }
+        g.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,270 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+// JMH refuses benchmark classes in the default package, and named packages cannot import the
+// application classes that live there. Both share the unnamed module, so the stages are reached
+// through method handles resolved once at class load.
+final class Stages {
+    private static final MethodHandle NEW_PROCESSOR = constructor("ImageProcessor", BufferedImage.class);
+    private static final MethodHandle UPDATE_HSB = method("ImageProcessor", "updateHSB", int.class, int.class, int.class);
+    private static final MethodHandle CURRENT_IMAGE = method("ImageProcessor", "getCurrentImage");
+    private static final MethodHandle GRAYSCALE = method("ImageProcessorObject", "convertToGrayscale", BufferedImage.class);
+    private static final MethodHandle SOBEL = method("ImageProcessorObject", "applySobelEdgeDetection", BufferedImage.class);
+    private static final MethodHandle BINARIZE = method("ImageProcessorObject", "binarizeImage", BufferedImage.class, int.class);
+    private static final MethodHandle SEGMENTATION = method("ImageProcessorObject", "performColorBasedSegmentation", BufferedImage.class);
+    private static final MethodHandle FIND_OBJECTS = method("ImageProcessorObject", "findObjects",
+            type("BitMask"), type("BitMask"), double.class);
+    private static final MethodHandle EDGES = method("EdgeDetector", "detect", BufferedImage.class, int.class);
+    private static final MethodHandle DETECT_OBJECTS = method("ObjectOutline", "detectObjects", BufferedImage.class);
+
+    // The same stages writing into destinations leased from the shared BufferPool
+    private static final MethodHandle SHARED_POOL = method("BufferPool", "shared");
+    private static final MethodHandle LEASE = method("BufferPool", "lease", int.class, int.class, int.class);
+    private static final MethodHandle LEASE_MASK = method("BufferPool", "leaseMask", int.class, int.class);
+    private static final MethodHandle RELEASE = method("BufferPool", "release", BufferedImage.class);
+    private static final MethodHandle RELEASE_MASK = method("BufferPool", "release", type("BitMask"));
+    private static final MethodHandle RENDER_INTO = method("ImageProcessor", "render",
+            int.class, int.class, int.class, type("Roi"), BufferedImage.class, BooleanSupplier.class);
+    private static final MethodHandle GRAYSCALE_INTO = method("ImageProcessorObject", "convertToGrayscale",
+            BufferedImage.class, BufferedImage.class);
+    private static final MethodHandle SOBEL_INTO = method("ImageProcessorObject", "applySobelEdgeDetection",
+            BufferedImage.class, BufferedImage.class);
+    private static final MethodHandle BINARIZE_INTO = method("ImageProcessorObject", "binarizeImage",
+            BufferedImage.class, int.class, type("BitMask"));
+    private static final MethodHandle SEGMENTATION_INTO = method("ImageProcessorObject", "performColorBasedSegmentation",
+            BufferedImage.class, type("BitMask"));
+    private static final MethodHandle EDGES_INTO = method("EdgeDetector", "detect", BufferedImage.class, int.class, type("BitMask"));
+    private static final MethodHandle FIND_CONTOURS = method("ObjectOutline", "findContours", BufferedImage.class);
+    private static final MethodHandle DRAW_CONTOURS_INTO = method("ObjectOutline", "drawContours",
+            BufferedImage.class, List.class, BufferedImage.class);
+    private static final BooleanSupplier NEVER_CANCELLED = () -> false;
+
+    private Stages() {
+    }
+
+    static Object newProcessor(BufferedImage image) {
+        try {
+            return NEW_PROCESSOR.invoke(image);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static BufferedImage updateHSB(Object processor, int hue, int saturation, int brightness) {
+        try {
+            UPDATE_HSB.invoke(processor, hue, saturation, brightness);
+            return (BufferedImage) CURRENT_IMAGE.invoke(processor);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static BufferedImage convertToGrayscale(BufferedImage image) {
+        try {
+            return (BufferedImage) GRAYSCALE.invoke(image);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static BufferedImage applySobelEdgeDetection(BufferedImage gray) {
+        try {
+            return (BufferedImage) SOBEL.invoke(gray);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    // Returns a BitMask
+    static Object binarizeImage(BufferedImage gradient, int threshold) {
+        try {
+            return BINARIZE.invoke(gradient, threshold);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    // Returns a BitMask
+    static Object performColorBasedSegmentation(BufferedImage image) {
+        try {
+            return SEGMENTATION.invoke(image);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static List<?> findObjects(Object edges, Object segmentation, double tolerance) {
+        try {
+            return (List<?>) FIND_OBJECTS.invoke(edges, segmentation, tolerance);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    // Returns a BitMask
+    static Object detectEdges(BufferedImage image, int threshold) {
+        try {
+            return EDGES.invoke(image, threshold);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static BufferedImage detectObjects(BufferedImage image) {
+        try {
+            return (BufferedImage) DETECT_OBJECTS.invoke(image);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    // Returns the BufferPool
+    static Object sharedPool() {
+        try {
+            return SHARED_POOL.invoke();
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static BufferedImage lease(Object pool, int width, int height, int type) {
+        try {
+            return (BufferedImage) LEASE.invoke(pool, width, height, type);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    // Returns a cleared BitMask
+    static Object leaseMask(Object pool, int width, int height) {
+        try {
+            return LEASE_MASK.invoke(pool, width, height);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static void release(Object pool, BufferedImage image) {
+        try {
+            RELEASE.invoke(pool, image);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static void releaseMask(Object pool, Object mask) {
+        try {
+            RELEASE_MASK.invoke(pool, mask);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static BufferedImage renderHSB(Object processor, int hue, int saturation, int brightness, BufferedImage destination) {
+        try {
+            return (BufferedImage) RENDER_INTO.invoke(processor, hue, saturation, brightness, null, destination, NEVER_CANCELLED);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static BufferedImage convertToGrayscale(BufferedImage image, BufferedImage destination) {
+        try {
+            return (BufferedImage) GRAYSCALE_INTO.invoke(image, destination);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static BufferedImage applySobelEdgeDetection(BufferedImage gray, BufferedImage destination) {
+        try {
+            return (BufferedImage) SOBEL_INTO.invoke(gray, destination);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static Object binarizeImage(BufferedImage gradient, int threshold, Object mask) {
+        try {
+            return BINARIZE_INTO.invoke(gradient, threshold, mask);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static Object performColorBasedSegmentation(BufferedImage image, Object mask) {
+        try {
+            return SEGMENTATION_INTO.invoke(image, mask);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static Object detectEdges(BufferedImage image, int threshold, Object mask) {
+        try {
+            return EDGES_INTO.invoke(image, threshold, mask);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static List<?> findContours(BufferedImage image) {
+        try {
+            return (List<?>) FIND_CONTOURS.invoke(image);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    static BufferedImage drawContours(BufferedImage image, List<?> contours, BufferedImage destination) {
+        try {
+            return (BufferedImage) DRAW_CONTOURS_INTO.invoke(image, contours, destination);
+        } catch (Throwable t) {
+            throw failure(t);
+        }
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Application class not on the classpath: " + name, e);
+        }
+    }
+
+    private static MethodHandle method(String owner, String name, Class<?>... parameters) {
+        try {
+            Method method = type(owner).getDeclaredMethod(name, parameters);
+            method.setAccessible(true); // ObjectOutline and ImageProcessorObject are package-private
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot resolve " + owner + "." + name, e);
+        }
+    }
+
+    private static MethodHandle constructor(String owner, Class<?>... parameters) {
+        try {
+            Constructor<?> constructor = type(owner).getDeclaredConstructor(parameters);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot resolve " + owner + " constructor", e);
+        }
+    }
+
+    private static RuntimeException failure(Throwable t) {
+        if (t instanceof RuntimeException runtime) {
+            return runtime;
+        }
+        if (t instanceof Error error) {
+            throw error;
+        }
+        return new IllegalStateException(t);
+    }
+}
@@ -0,0 +1,390 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Headless batch mode: runs the HSB adjustment, edge detection or outline detection over a directory of images.
+// Decode, process and encode run on separate executors so they overlap. A fixed number of slots bounds
+// the queued work and a memory budget, estimated from the image headers, caps the in-flight pixels.
+// Images above the tiled size are streamed strip by strip through TiledProcessor instead.
+public class BatchProcessor {
+    private static final int EDGE_THRESHOLD = 128; // Same threshold the outline uses
+
+    enum Operation { HSB, EDGES, OUTLINE }
+
+    static final class Options {
+        File input;
+        File output;
+        Operation operation = Operation.HSB;
+        int hue = 0;
+        int saturation = 100;
+        int brightness = 100;
+        int ioThreads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+        long memoryBudgetBytes = Runtime.getRuntime().maxMemory() / 2;
+        long tiledPixels = 100_000_000L;
+        boolean skipExisting;
+        File metrics;
+        ImageExporter.Settings export = ImageExporter.Settings.defaults();
+    }
+
+    private final Options options;
+    private final Semaphore memory;
+    private final int memoryUnits;
+    // Most any one image may reserve: the budget less what the colour table holds for the whole run
+    private int imageUnits;
+    // Caps the images queued across all stages, whatever their size
+    private final Semaphore slots;
+    private final int slotCount;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong pixels = new AtomicLong();
+    private final List<Long> latencies = new ArrayList<>();
+    // The HSB parameters are the same for every image, so one table serves the whole batch
+    private ColorTransform.Table table;
+
+    BatchProcessor(Options options) {
+        this.options = options;
+        // Budget is tracked in KB so large budgets still fit the semaphore's int permits
+        this.memoryUnits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, options.memoryBudgetBytes >> 10));
+        this.memory = new Semaphore(memoryUnits);
+        this.imageUnits = memoryUnits;
+        this.slotCount = options.ioThreads * 2 + 2;
+        this.slots = new Semaphore(slotCount);
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        Options options = CliOptions.parseOrExit(args, BatchProcessor::parse, BatchProcessor::printUsage);
+        int failures = new BatchProcessor(options).run();
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // Returns the number of images that failed
+    int run() {
+        File[] files = options.input.listFiles(CliOptions::isImage);
+        if (files == null) {
+            System.err.println("Cannot read input directory: " + options.input);
+            return 1;
+        }
+        Arrays.sort(files);
+        if (!options.output.isDirectory() && !options.output.mkdirs()) {
+            System.err.println("Cannot create output directory: " + options.output);
+            return 1;
+        }
+
+        ExecutorService decoders = Executors.newFixedThreadPool(options.ioThreads, CliOptions.daemon("batch-decode"));
+        // Processing is already parallel inside each stage, two images at a time keep the pool busy between them
+        ExecutorService processors = Executors.newFixedThreadPool(2, CliOptions.daemon("batch-process"));
+        ExecutorService encoders = Executors.newFixedThreadPool(options.ioThreads, CliOptions.daemon("batch-encode"));
+        long start = System.nanoTime();
+        Map<String, Integer> baseNames = new HashMap<>();
+        for (File file : files) {
+            baseNames.merge(CliOptions.baseName(file).toLowerCase(Locale.ROOT), 1, Integer::sum);
+        }
+        int tableUnits = 0;
+        try {
+            if (options.operation == Operation.HSB) {
+                tableUnits = compileTable();
+                imageUnits = memoryUnits - tableUnits;
+            }
+            for (File file : files) {
+                File target = new File(options.output, outputName(file, baseNames) + ".png");
+                if (options.skipExisting && target.length() > 0) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                long[] size = headerSize(file);
+                // Outlines need the whole image for labelling, so only the per-pixel operations can stream
+                boolean tiled = size != null && options.operation != Operation.OUTLINE
+                        && size[0] * size[1] >= options.tiledPixels;
+                slots.acquire();
+                int units = reserve(tiled ? TiledProcessor.workingSetBytes((int) size[0]) : estimateBytes(file, size));
+                long submitted = System.nanoTime();
+                CompletableFuture<Void> job = tiled
+                        ? CompletableFuture.runAsync(() -> processTiled(file, target, size), processors)
+                        : CompletableFuture
+                                .supplyAsync(() -> decode(file), decoders)
+                                .thenApplyAsync(this::process, processors)
+                                .thenAcceptAsync(image -> encode(image, target), encoders);
+                job.whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        failed.incrementAndGet();
+                        System.err.println("Failed " + file + ": " + rootCause(error));
+                    } else {
+                        processed.incrementAndGet();
+                        recordLatency(System.nanoTime() - submitted);
+                    }
+                    // Released last, so the report never runs before the image is counted
+                    memory.release(units);
+                    slots.release();
+                });
+            }
+            // Every slot free again means every image has finished
+            slots.acquire(slotCount);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted, stopping");
+        } finally {
+            decoders.shutdownNow();
+            processors.shutdownNow();
+            encoders.shutdownNow();
+            if (table != null) {
+                table.release();
+                memory.release(tableUnits);
+            }
+        }
+        printReport(System.nanoTime() - start);
+        CliOptions.writeMetrics(options.metrics);
+        return failed.get();
+    }
+
+    // Compiles the batch's table and reserves its memory, returning the units held. The pixel count
+    // is not known before every header is read, so AUTO is told the table is reused on a large
+    // batch. A full table that would crowd out the images falls back to direct evaluation.
+    private int compileTable() throws InterruptedException {
+        ColorTransform transform = ColorTransform.hsb(options.hue, options.saturation, options.brightness);
+        table = transform.compile(ColorTransform.Accuracy.AUTO, Long.MAX_VALUE, true);
+        if (table.bytes() > options.memoryBudgetBytes / 2) {
+            table.release();
+            table = transform.compile(ColorTransform.Accuracy.DIRECT, 0);
+        }
+        return table.bytes() == 0 ? 0 : reserve(table.bytes());
+    }
+
+    // Decoded source, processed result and the encoder's copy, at 4 bytes per pixel each
+    private static long estimateBytes(File file, long[] size) {
+        if (size == null) {
+            return file.length() * 4; // Unreadable header; the decode will report the real error
+        }
+        return size[0] * size[1] * 4 * 3;
+    }
+
+    // Blocks until the estimated working set fits in the memory budget
+    private int reserve(long bytes) throws InterruptedException {
+        // An image larger than what the table leaves of the budget still runs, just on its own
+        int units = (int) Math.min(imageUnits, Math.max(1, bytes >> 10));
+        memory.acquire(units);
+        return units;
+    }
+
+    // Width and height from the header without decoding the pixels, or null if it cannot be read
+    private static long[] headerSize(File file) {
+        try {
+            return readSize(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long[] readSize(File file) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            if (stream == null) {
+                throw new IOException("No image stream for " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                return new long[]{reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private BufferedImage decode(File file) {
+        try {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                throw new IOException("Unsupported image format: " + file);
+            }
+            pixels.addAndGet((long) image.getWidth() * image.getHeight());
+            return image;
+        } catch (IOException e) {
+            throw new BatchException(e);
+        }
+    }
+
+    // Results are leased from the buffer pool and go back once encoded, so same-sized photos reuse them
+    private BufferedImage process(BufferedImage image) {
+        BufferPool pool = BufferPool.shared();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (options.operation == Operation.OUTLINE) {
+            return ObjectOutline.drawContours(image, ObjectOutline.findContours(image),
+                    pool.lease(width, height, BufferedImage.TYPE_INT_RGB));
+        }
+        if (options.operation == Operation.EDGES) {
+            BitMask edges = EdgeDetector.detect(image, EDGE_THRESHOLD, pool.leaseMask(width, height));
+            try {
+                return edges.toImage();
+            } finally {
+                pool.release(edges);
+            }
+        }
+        BufferedImage result = pool.lease(width, height, BufferedImage.TYPE_INT_RGB);
+        try (StageTimer timer = StageTimer.start("hsb", image)) {
+            int[] source = PixelAccess.rgb(image);
+            int[] target = PixelAccess.rgb(result);
+            ComputePool.forEachTile(height, ComputePool.tileRows(width),
+                    (startRow, endRow) -> table.apply(source, target, startRow * width, endRow * width));
+        }
+        return result;
+    }
+
+    // Decode, process and encode in one go, a strip at a time
+    private void processTiled(File file, File target, long[] size) {
+        File partial = ImageExporter.partialFile(target);
+        int level = options.export.compressionLevel();
+        try {
+            if (options.operation == Operation.EDGES) {
+                TiledProcessor.detectEdges(file, partial, EDGE_THRESHOLD, level);
+            } else {
+                TiledProcessor.adjustHSB(file, partial, options.hue, options.saturation, options.brightness, level);
+            }
+            ImageExporter.replace(partial, target);
+            pixels.addAndGet(size[0] * size[1]);
+        } catch (IOException e) {
+            partial.delete();
+            throw new BatchException(e);
+        }
+    }
+
+    // Same encoder and settings as an export from the editor
+    private void encode(BufferedImage image, File target) {
+        try {
+            ImageExporter.export(image, target, options.export);
+        } catch (IOException e) {
+            throw new BatchException(e);
+        } finally {
+            BufferPool.shared().release(image);
+        }
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        latencies.add(nanos);
+        StageMetrics.recordNanos("batch.image", nanos);
+    }
+
+    private synchronized void printReport(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf(Locale.ROOT, "Processed %d, skipped %d, failed %d in %.2f s%n",
+                processed.get(), skipped.get(), failed.get(), seconds);
+        System.out.printf(Locale.ROOT, "Throughput: %.2f images/s, %.2f MP/s%n",
+                processed.get() / seconds, pixels.get() / 1e6 / seconds);
+        System.out.printf(Locale.ROOT, "Latency per image: p50 %.1f ms, p99 %.1f ms%n",
+                percentile(sorted, 0.50), percentile(sorted, 0.99));
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--skip-existing":
+                    options.skipExisting = true;
+                    break;
+                case "--input":
+                    options.input = new File(CliOptions.value(args, ++i, arg));
+                    break;
+                case "--output":
+                    options.output = new File(CliOptions.value(args, ++i, arg));
+                    break;
+                case "--operation":
+                    options.operation = CliOptions.enumValue(Operation.class, args, ++i, arg, "operation");
+                    break;
+                case "--hue":
+                    options.hue = CliOptions.intValue(args, ++i, arg);
+                    break;
+                case "--saturation":
+                    options.saturation = CliOptions.intValue(args, ++i, arg);
+                    break;
+                case "--brightness":
+                    options.brightness = CliOptions.intValue(args, ++i, arg);
+                    break;
+                case "--io-threads":
+                    options.ioThreads = Math.max(1, CliOptions.intValue(args, ++i, arg));
+                    break;
+                case "--tiled-mp":
+                    options.tiledPixels = Math.max(1, CliOptions.intValue(args, ++i, arg)) * 1_000_000L;
+                    break;
+                case "--metrics":
+                    options.metrics = new File(CliOptions.value(args, ++i, arg));
+                    break;
+                case "--compression":
+                    options.export = options.export.withCompressionLevel(CliOptions.compressionLevel(args, ++i, arg));
+                    break;
+                case "--png-encoder":
+                    options.export = options.export.withEncoder(
+                            CliOptions.enumValue(ImageExporter.Encoder.class, args, ++i, arg, "PNG encoder"));
+                    break;
+                case "--memory-mb":
+                    options.memoryBudgetBytes = CliOptions.megabytes(args, ++i, arg);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (options.input == null || options.output == null) {
+            throw new IllegalArgumentException("--input and --output are required");
+        }
+        return options;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: BatchProcessor --input DIR --output DIR [--operation hsb|edges|outline]");
+        System.err.println("       [--hue DEG] [--saturation PCT] [--brightness PCT]");
+        System.err.println("       [--io-threads N] [--memory-mb MB] [--tiled-mp MP] [--skip-existing]");
+        System.err.println("       [--metrics FILE]   per-stage timings as JSON");
+        System.err.println("       [--compression 0-9] [--png-encoder auto|imageio|parallel]");
+    }
+
+    // Inputs that differ only by extension, a.jpg and a.png, would both write a.png, the last one
+    // winning; those keep their whole name instead and write a.jpg.png and a.png.png
+    private static String outputName(File file, Map<String, Integer> baseNames) {
+        String base = CliOptions.baseName(file);
+        return baseNames.get(base.toLowerCase(Locale.ROOT)) > 1 ? file.getName() : base;
+    }
+
+    private static Throwable rootCause(Throwable error) {
+        while (error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    // Carries an IOException through the CompletableFuture stages
+    private static final class BatchException extends RuntimeException {
+        BatchException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+
+// A binary image packed 64 pixels to a long. Rows start on a word boundary, so row tiles never share
+// a word, and bit x of a row is bit (x & 63) of word x >> 6. Bits past the width are always zero.
+public final class BitMask {
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    public BitMask(int width, int height) {
+        this(width, height, new long[wordsPerRow(width) * height]);
+    }
+
+    // Over words supplied by the caller, e.g. leased from a BufferPool; they must be cleared
+    BitMask(int width, int height, long[] words) {
+        if (words.length != wordsPerRow(width) * height) {
+            throw new IllegalArgumentException("Expected " + wordsPerRow(width) * height + " words, got " + words.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = wordsPerRow(width);
+        this.words = words;
+    }
+
+    private BitMask(BitMask other) {
+        this.width = other.width;
+        this.height = other.height;
+        this.wordsPerRow = other.wordsPerRow;
+        this.words = other.words.clone();
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int wordsPerRow() {
+        return wordsPerRow;
+    }
+
+    static int wordsPerRow(int width) {
+        return (width + 63) >>> 6;
+    }
+
+    // The backing words, for kernels that build or scan whole rows at a time
+    long[] words() {
+        return words;
+    }
+
+    public BitMask copy() {
+        return new BitMask(this);
+    }
+
+    public boolean get(int x, int y) {
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    public void set(int x, int y) {
+        words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+    }
+
+    public void clear(int x, int y) {
+        words[y * wordsPerRow + (x >>> 6)] &= ~(1L << x);
+    }
+
+    public void set(int x, int y, boolean value) {
+        if (value) {
+            set(x, y);
+        } else {
+            clear(x, y);
+        }
+    }
+
+    // Stores 64 pixels starting at x (a multiple of 64) of row y; bits past the width are dropped
+    void setWord(int x, int y, long bits) {
+        int word = x >>> 6;
+        words[y * wordsPerRow + word] = word == wordsPerRow - 1 ? bits & tailMask() : bits;
+    }
+
+    // First set pixel in row y at or after fromX, or -1
+    public int nextSetBit(int y, int fromX) {
+        if (fromX >= width) {
+            return -1;
+        }
+        int rowStart = y * wordsPerRow;
+        int index = fromX >>> 6;
+        long word = words[rowStart + index] & (-1L << fromX);
+        while (true) {
+            if (word != 0) {
+                return (index << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++index == wordsPerRow) {
+                return -1;
+            }
+            word = words[rowStart + index];
+        }
+    }
+
+    // First clear pixel in row y at or after fromX, or width
+    public int nextClearBit(int y, int fromX) {
+        if (fromX >= width) {
+            return width;
+        }
+        int rowStart = y * wordsPerRow;
+        int index = fromX >>> 6;
+        long word = ~words[rowStart + index] & (-1L << fromX);
+        while (true) {
+            if (word != 0) {
+                return Math.min(width, (index << 6) + Long.numberOfTrailingZeros(word));
+            }
+            if (++index == wordsPerRow) {
+                return width;
+            }
+            word = ~words[rowStart + index];
+        }
+    }
+
+    // Number of set pixels
+    public long cardinality() {
+        long count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    public BitMask and(BitMask other) {
+        checkSameSize(other);
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= other.words[i];
+        }
+        return this;
+    }
+
+    public BitMask or(BitMask other) {
+        checkSameSize(other);
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= other.words[i];
+        }
+        return this;
+    }
+
+    public BitMask andNot(BitMask other) {
+        checkSameSize(other);
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= ~other.words[i];
+        }
+        return this;
+    }
+
+    public BitMask xor(BitMask other) {
+        checkSameSize(other);
+        for (int i = 0; i < words.length; i++) {
+            words[i] ^= other.words[i];
+        }
+        return this;
+    }
+
+    public BitMask not() {
+        long tail = tailMask();
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * wordsPerRow;
+            for (int i = rowStart; i < rowStart + wordsPerRow - 1; i++) {
+                words[i] = ~words[i];
+            }
+            words[rowStart + wordsPerRow - 1] = ~words[rowStart + wordsPerRow - 1] & tail;
+        }
+        return this;
+    }
+
+    // 3x3 dilation: a pixel is set when any of its 8 neighbours or itself is set
+    public BitMask dilate() {
+        return morph(true);
+    }
+
+    // 3x3 erosion: a pixel stays set only when it and all 8 neighbours are set; outside the image counts as clear
+    public BitMask erode() {
+        return morph(false);
+    }
+
+    private BitMask morph(boolean dilate) {
+        BitMask result = new BitMask(width, height);
+        if (words.length == 0) {
+            return result;
+        }
+        long tail = tailMask();
+        ComputePool.forEachTile(height, ComputePool.tileRows(width), (startY, endY) -> {
+            long[] above = new long[wordsPerRow];
+            long[] row = new long[wordsPerRow];
+            long[] below = new long[wordsPerRow];
+            horizontal(startY - 1, dilate, above);
+            horizontal(startY, dilate, row);
+            for (int y = startY; y < endY; y++) {
+                horizontal(y + 1, dilate, below);
+                int rowStart = y * wordsPerRow;
+                for (int i = 0; i < wordsPerRow; i++) {
+                    long value = dilate ? above[i] | row[i] | below[i] : above[i] & row[i] & below[i];
+                    result.words[rowStart + i] = i == wordsPerRow - 1 ? value & tail : value;
+                }
+                long[] recycled = above;
+                above = row;
+                row = below;
+                below = recycled;
+            }
+        });
+        return result;
+    }
+
+    // Combines each pixel of row y with its left and right neighbours; rows outside the image are clear
+    private void horizontal(int y, boolean dilate, long[] out) {
+        if (y < 0 || y >= height) {
+            Arrays.fill(out, 0);
+            return;
+        }
+        int rowStart = y * wordsPerRow;
+        for (int i = 0; i < wordsPerRow; i++) {
+            long word = words[rowStart + i];
+            long previous = i > 0 ? words[rowStart + i - 1] : 0;
+            long next = i < wordsPerRow - 1 ? words[rowStart + i + 1] : 0;
+            long left = (word << 1) | (previous >>> 63);  // Neighbour at x - 1
+            long right = (word >>> 1) | (next << 63);     // Neighbour at x + 1
+            // Bits past the width are clear, so the last pixel sees a clear right neighbour
+            out[i] = dilate ? word | left | right : word & left & right;
+        }
+    }
+
+    private long tailMask() {
+        int bits = width & 63;
+        return bits == 0 ? -1L : (1L << bits) - 1;
+    }
+
+    private void checkSameSize(BitMask other) {
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException("Mask sizes differ: " + width + "x" + height + " vs " + other.width + "x" + other.height);
+        }
+    }
+
+    // White pixels (getRGB(x, y) & 0xFF == 255) become set bits
+    public static BitMask fromImage(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BitMask mask = new BitMask(width, height);
+        if (image.getType() == BufferedImage.TYPE_BYTE_BINARY && PixelAccess.isCompact(image)
+                && image.getColorModel().getPixelSize() == 1) {
+            byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            boolean whiteIsOne = (image.getColorModel().getRGB(1) & 0xFF) == 255;
+            int stride = (width + 7) >> 3;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int bit = (data[y * stride + (x >> 3)] >> (7 - (x & 7))) & 1;
+                    if ((bit == 1) == whiteIsOne) {
+                        mask.set(x, y);
+                    }
+                }
+            }
+            return mask;
+        }
+        int[] pixels = PixelAccess.argb(image);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if ((pixels[y * width + x] & 0xFF) == 255) {
+                    mask.set(x, y);
+                }
+            }
+        }
+        return mask;
+    }
+
+    // Set bits become white in a TYPE_BYTE_BINARY image
+    public BufferedImage toImage() {
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        byte[] data = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+        int stride = (width + 7) >> 3;
+        for (int y = 0; y < height; y++) {
+            for (int x = nextSetBit(y, 0); x >= 0; x = nextSetBit(y, x + 1)) {
+                data[y * stride + (x >> 3)] |= (byte) (0x80 >> (x & 7));
+            }
+        }
+        return result;
+    }
+}
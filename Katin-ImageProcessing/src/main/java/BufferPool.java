@@ -0,0 +1,201 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// Reusable full-size buffers, so stages that run again and again on same-sized images (slider
+// previews, sequence frames, batch and server requests) write into memory from an earlier run
+// instead of allocating. Full-size arrays are humongous objects for G1, and one per frame keeps the
+// collector busy. Images are kept by width, height and type; int[] and long[] by length.
+// lease() hands out a buffer whose contents are undefined, to be overwritten by the caller, and
+// release() gives it back once nothing reads it any more. A buffer that is never released is simply
+// collected. Spares are capped at maxBytes; beyond that a release lets the buffer go.
+public final class BufferPool {
+    private static final BufferPool SHARED = new BufferPool("shared", Long.getLong("imageedit.poolMB", 256) << 20);
+    // Shapes tracked at once; a lookup scans them, which unlike a keyed map allocates nothing
+    private static final int MAX_SHAPES = 16;
+
+    private static final int IMAGE = 0;
+    private static final int INTS = 1;
+    private static final int LONGS = 2;
+
+    // One kind of buffer and its spares
+    private static final class Shape {
+        final int kind;
+        final int width;
+        final int height;
+        final int type;
+        final long bytes;
+        final ArrayDeque<Object> spares = new ArrayDeque<>();
+        long lastUsed;
+
+        Shape(int kind, int width, int height, int type, long bytes) {
+            this.kind = kind;
+            this.width = width;
+            this.height = height;
+            this.type = type;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long maxBytes;
+    private final Shape[] shapes = new Shape[MAX_SHAPES];
+    private final String reusedCounter;
+    private final String allocatedCounter;
+    private long retainedBytes;
+    private long clock;
+
+    // name labels the pool's counters in StageMetrics: pool.<name>.reused and pool.<name>.allocated
+    public BufferPool(String name, long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.reusedCounter = "pool." + name + ".reused";
+        this.allocatedCounter = "pool." + name + ".allocated";
+    }
+
+    // The application-wide pool, capped by -Dimageedit.poolMB (default 256)
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    public BufferedImage lease(int width, int height, int type) {
+        BufferedImage image = (BufferedImage) take(IMAGE, width, height, type);
+        return image != null ? image : new BufferedImage(width, height, type);
+    }
+
+    public int[] leaseInts(int length) {
+        int[] array = (int[]) take(INTS, length, 1, 0);
+        return array != null ? array : new int[length];
+    }
+
+    public long[] leaseLongs(int length) {
+        long[] array = (long[]) take(LONGS, length, 1, 0);
+        return array != null ? array : new long[length];
+    }
+
+    // A cleared mask backed by pooled words; give it back with release(BitMask)
+    public BitMask leaseMask(int width, int height) {
+        long[] words = leaseLongs(BitMask.wordsPerRow(width) * height);
+        Arrays.fill(words, 0);
+        return new BitMask(width, height, words);
+    }
+
+    // Only plain full-raster images are kept: not sub-images, whose buffer is shared with the parent
+    public void release(BufferedImage image) {
+        if (image == null || image.getType() == BufferedImage.TYPE_CUSTOM || !PixelAccess.isCompact(image)
+                || image.getRaster().getParent() != null) {
+            return;
+        }
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        long bytes = (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        give(IMAGE, image.getWidth(), image.getHeight(), image.getType(), bytes, image);
+    }
+
+    public void release(int[] array) {
+        if (array != null) {
+            give(INTS, array.length, 1, 0, 4L * array.length, array);
+        }
+    }
+
+    public void release(long[] array) {
+        if (array != null) {
+            give(LONGS, array.length, 1, 0, 8L * array.length, array);
+        }
+    }
+
+    public void release(BitMask mask) {
+        if (mask != null) {
+            release(mask.words());
+        }
+    }
+
+    public synchronized long retainedBytes() {
+        return retainedBytes;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(shapes, null);
+        retainedBytes = 0;
+    }
+
+    private synchronized Object take(int kind, int width, int height, int type) {
+        Shape shape = find(kind, width, height, type);
+        Object spare = shape == null ? null : shape.spares.poll();
+        if (spare == null) {
+            StageMetrics.increment(allocatedCounter);
+            return null;
+        }
+        shape.lastUsed = ++clock;
+        retainedBytes -= shape.bytes;
+        StageMetrics.increment(reusedCounter);
+        return spare;
+    }
+
+    private synchronized void give(int kind, int width, int height, int type, long bytes, Object buffer) {
+        if (bytes > maxBytes) {
+            return;
+        }
+        Shape shape = find(kind, width, height, type);
+        if (shape == null) {
+            shape = new Shape(kind, width, height, type, bytes);
+            addShape(shape);
+        } else {
+            for (Object spare : shape.spares) {
+                if (spare == buffer) {
+                    return; // Released twice; keeping it twice would hand it to two users
+                }
+            }
+        }
+        // Make room by dropping the spares of the shapes used longest ago
+        while (retainedBytes + bytes > maxBytes && evictOldest(shape)) {
+        }
+        if (retainedBytes + bytes > maxBytes) {
+            return;
+        }
+        shape.spares.push(buffer);
+        shape.lastUsed = ++clock;
+        retainedBytes += bytes;
+    }
+
+    private Shape find(int kind, int width, int height, int type) {
+        for (Shape shape : shapes) {
+            if (shape != null && shape.kind == kind && shape.width == width && shape.height == height && shape.type == type) {
+                return shape;
+            }
+        }
+        return null;
+    }
+
+    private void addShape(Shape added) {
+        int slot = 0;
+        for (int i = 0; i < shapes.length; i++) {
+            if (shapes[i] == null) {
+                slot = i;
+                break;
+            }
+            if (shapes[i].lastUsed < shapes[slot].lastUsed) {
+                slot = i;
+            }
+        }
+        if (shapes[slot] != null) {
+            retainedBytes -= shapes[slot].bytes * shapes[slot].spares.size();
+        }
+        shapes[slot] = added;
+    }
+
+    // Drops one spare of the least recently used shape other than keep; false if there is none
+    private boolean evictOldest(Shape keep) {
+        Shape oldest = null;
+        for (Shape shape : shapes) {
+            if (shape != null && shape != keep && !shape.spares.isEmpty()
+                    && (oldest == null || shape.lastUsed < oldest.lastUsed)) {
+                oldest = shape;
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        oldest.spares.removeLast();
+        retainedBytes -= oldest.bytes;
+        return true;
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Command line plumbing shared by the headless modes (batch, sequence and server): option values,
+// file names, worker threads and the metrics file. Problems with the arguments are reported as
+// IllegalArgumentException, which parseOrExit turns into the message, the usage and exit status 2.
+final class CliOptions {
+    // The input formats the modes pick up from a directory
+    static final List<String> IMAGE_EXTENSIONS = List.of("png", "jpg", "jpeg", "bmp", "gif");
+
+    private CliOptions() {
+    }
+
+    static <T> T parseOrExit(String[] args, Function<String[], T> parser, Runnable usage) {
+        try {
+            return parser.apply(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage.run();
+            System.exit(2);
+            return null;
+        }
+    }
+
+    static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[index];
+    }
+
+    static int intValue(String[] args, int index, String option) {
+        try {
+            return Integer.parseInt(value(args, index, option));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number for " + option + ": " + args[index]);
+        }
+    }
+
+    // A case-insensitive enum constant; what names the kind of value in the error, e.g. "operation"
+    static <E extends Enum<E>> E enumValue(Class<E> type, String[] args, int index, String option, String what) {
+        try {
+            return Enum.valueOf(type, value(args, index, option).toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            if (index >= args.length) {
+                throw e;
+            }
+            throw new IllegalArgumentException("Unknown " + what + ": " + args[index]);
+        }
+    }
+
+    // A whole number of megabytes, at least one, in bytes
+    static long megabytes(String[] args, int index, String option) {
+        return Math.max(1, intValue(args, index, option)) * (1L << 20);
+    }
+
+    // A Deflater level for --compression
+    static int compressionLevel(String[] args, int index, String option) {
+        int level = intValue(args, index, option);
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be 0 to 9: " + level);
+        }
+        return level;
+    }
+
+    static boolean isImage(File file) {
+        return file.isFile() && IMAGE_EXTENSIONS.contains(extension(file));
+    }
+
+    static String extension(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    // Numbered daemon threads, so a worker left running never keeps the JVM from exiting
+    static ThreadFactory daemon(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // The StageMetrics snapshot as JSON, for comparing runs or spotting regressions; null writes nothing
+    static void writeMetrics(File metrics) {
+        if (metrics == null) {
+            return;
+        }
+        try {
+            Files.writeString(metrics.toPath(), StageMetrics.snapshotJson());
+        } catch (IOException e) {
+            System.err.println("Cannot write metrics to " + metrics + ": " + e.getMessage());
+        }
+    }
+}
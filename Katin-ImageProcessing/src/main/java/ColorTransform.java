@@ -0,0 +1,404 @@
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// A chain of per-pixel colour adjustments (HSB, levels, curves, contrast) that is compiled into a single
+// lookup table, so applying any combination of them costs one table lookup per pixel.
+public final class ColorTransform {
+    public enum Accuracy {
+        EXACT,   // Full 24-bit table, identical to evaluating the adjustments directly
+        LATTICE, // 33x33x33 lattice with trilinear interpolation; ~140 KB but approximate, see maxError
+        DIRECT,  // No table, evaluate every pixel
+        AUTO     // DIRECT for plain HSB when SIMD kernels are available, else EXACT for large images whose
+                 // table will be reused when the heap has room for it, DIRECT otherwise
+    }
+
+    // One colour adjustment on packed 0xRRGGBB (alpha is ignored and the result carries none)
+    public interface Adjustment {
+        int apply(int rgb);
+    }
+
+    // A compiled transform. Thread safe; call release() when done so the table can be reused.
+    public interface Table {
+        int lookup(int rgb);
+
+        // Transforms src[from, to) into dst[from, to); results have no alpha
+        default void apply(int[] src, int[] dst, int from, int to) {
+            for (int i = from; i < to; i++) {
+                dst[i] = lookup(src[i]);
+            }
+        }
+
+        default void release() {
+        }
+
+        // Memory the table holds, for callers that budget it
+        default long bytes() {
+            return 0;
+        }
+    }
+
+    private static final int EXACT_SIZE = 1 << 24;
+    private static final long EXACT_MIN_PIXELS = 1 << 20;
+    private static final int LATTICE_POINTS = 33;
+    // At 64 MB each, only a couple of released tables are kept; the rest are left to the collector
+    private static final int MAX_SPARE_TABLES = 2;
+
+    // Cleared 24-bit tables waiting to be reused
+    private static final ConcurrentLinkedQueue<int[]> spareTables = new ConcurrentLinkedQueue<>();
+
+    private final List<Adjustment> adjustments;
+
+    private ColorTransform(List<Adjustment> adjustments) {
+        this.adjustments = adjustments;
+    }
+
+    public static ColorTransform identity() {
+        return new ColorTransform(List.of());
+    }
+
+    // The HSB adjustment of ImageProcessor: rotate hue by degrees, scale saturation and brightness by percent
+    public static ColorTransform hsb(int hue, int saturation, int brightness) {
+        return identity().then(hsbAdjustment(hue, saturation, brightness));
+    }
+
+    public ColorTransform then(Adjustment adjustment) {
+        List<Adjustment> chained = new ArrayList<>(adjustments);
+        chained.add(adjustment);
+        return new ColorTransform(List.copyOf(chained));
+    }
+
+    // Evaluates the chain directly, without any table
+    public int apply(int rgb) {
+        rgb &= 0xFFFFFF;
+        for (Adjustment adjustment : adjustments) {
+            rgb = adjustment.apply(rgb) & 0xFFFFFF;
+        }
+        return rgb;
+    }
+
+    // For a table used once, on pixelCount pixels
+    public Table compile(Accuracy accuracy, long pixelCount) {
+        return compile(accuracy, pixelCount, false);
+    }
+
+    // reused says the table will serve more than one image, e.g. every frame of a sequence, so filling
+    // a full table can pay off. A single render does better evaluating its pixels directly.
+    public Table compile(Accuracy accuracy, long pixelCount, boolean reused) {
+        if (adjustments.isEmpty()) {
+            return rgb -> rgb & 0xFFFFFF;
+        }
+        switch (accuracy) {
+            case EXACT:
+                return exactTable();
+            case LATTICE:
+                return new LatticeTable(this);
+            case DIRECT:
+                return direct();
+            default:
+                // The vector kernel beats filling a 64 MB table unless the image has very few colours
+                if (vectorHsb() != null) {
+                    return direct();
+                }
+                if (reused && pixelCount >= EXACT_MIN_PIXELS && (spareTables.peek() != null || heapHasRoomForTable())) {
+                    return exactTable();
+                }
+                return direct();
+        }
+    }
+
+    // Largest per-channel difference between the table and the reference Color.RGBtoHSB/HSBtoRGB path
+    // (or direct evaluation for non-HSB chains) over the given pixels
+    public int maxError(Table table, int[] pixels) {
+        int worst = 0;
+        for (int pixel : pixels) {
+            int expected = reference(pixel);
+            int actual = table.lookup(pixel);
+            for (int shift = 0; shift <= 16; shift += 8) {
+                worst = Math.max(worst, Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF)));
+            }
+        }
+        return worst;
+    }
+
+    private int reference(int rgb) {
+        rgb &= 0xFFFFFF;
+        for (Adjustment adjustment : adjustments) {
+            rgb = (adjustment instanceof HsbAdjustment hsb ? hsb.reference(rgb) : adjustment.apply(rgb)) & 0xFFFFFF;
+        }
+        return rgb;
+    }
+
+    // Per-pixel evaluation; a lone HSB adjustment runs as a SIMD kernel when the Vector API is available
+    private Table direct() {
+        HsbAdjustment hsb = vectorHsb();
+        if (hsb != null) {
+            return new Table() {
+                @Override
+                public int lookup(int rgb) {
+                    return hsb.apply(rgb);
+                }
+
+                @Override
+                public void apply(int[] src, int[] dst, int from, int to) {
+                    SimdKernels.hsb(src, dst, from, to, hsb.hueShift, hsb.saturationScale, hsb.brightnessScale);
+                }
+            };
+        }
+        return this::apply;
+    }
+
+    private HsbAdjustment vectorHsb() {
+        if (SimdKernels.isVectorized() && adjustments.size() == 1 && adjustments.get(0) instanceof HsbAdjustment hsb) {
+            return hsb;
+        }
+        return null;
+    }
+
+    private Table exactTable() {
+        int[] table = spareTables.poll();
+        if (table == null) {
+            table = new int[EXACT_SIZE];
+        }
+        return new ExactTable(this, table);
+    }
+
+    private static boolean heapHasRoomForTable() {
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return free > 4L * EXACT_SIZE * 4;
+    }
+
+    public static Adjustment hsbAdjustment(int hue, int saturation, int brightness) {
+        return new HsbAdjustment(hue, saturation, brightness);
+    }
+
+    // Input levels [black, white] with gamma, mapped to output levels [outBlack, outWhite], on every channel
+    public static Adjustment levels(int black, int white, double gamma, int outBlack, int outWhite) {
+        int[] curve = new int[256];
+        for (int v = 0; v < 256; v++) {
+            double t = Math.min(1.0, Math.max(0.0, (v - black) / (double) Math.max(1, white - black)));
+            curve[v] = clamp((int) Math.round(outBlack + Math.pow(t, 1.0 / gamma) * (outWhite - outBlack)));
+        }
+        return channelCurve(curve);
+    }
+
+    // Piecewise linear curve through the given control points (x ascending), on every channel
+    public static Adjustment curve(int[] xs, int[] ys) {
+        if (xs.length != ys.length || xs.length == 0) {
+            throw new IllegalArgumentException("Curve needs matching, non-empty control points");
+        }
+        int[] curve = new int[256];
+        for (int v = 0; v < 256; v++) {
+            int k = 0;
+            while (k < xs.length - 1 && xs[k + 1] < v) {
+                k++;
+            }
+            if (v <= xs[0]) {
+                curve[v] = clamp(ys[0]);
+            } else if (k == xs.length - 1) {
+                curve[v] = clamp(ys[k]);
+            } else {
+                double t = (v - xs[k]) / (double) Math.max(1, xs[k + 1] - xs[k]);
+                curve[v] = clamp((int) Math.round(ys[k] + t * (ys[k + 1] - ys[k])));
+            }
+        }
+        return channelCurve(curve);
+    }
+
+    // Contrast in [-255, 255] around mid gray, 0 leaves the image unchanged
+    public static Adjustment contrast(int amount) {
+        double factor = (259.0 * (amount + 255)) / (255.0 * (259 - amount));
+        int[] curve = new int[256];
+        for (int v = 0; v < 256; v++) {
+            curve[v] = clamp((int) Math.round(factor * (v - 128) + 128));
+        }
+        return channelCurve(curve);
+    }
+
+    private static Adjustment channelCurve(int[] curve) {
+        return rgb -> curve[(rgb >> 16) & 0xFF] << 16 | curve[(rgb >> 8) & 0xFF] << 8 | curve[rgb & 0xFF];
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : Math.min(v, 255);
+    }
+
+    // Same arithmetic as Color.RGBtoHSB followed by Color.HSBtoRGB, without the float[] per pixel.
+    // SimdKernels.hsb is the bulk version; VectorKernels.hsb must mirror every float operation here.
+    static int hsbPixel(int rgb, float hueShift, float saturationScale, float brightnessScale) {
+        int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+        int cmax = Math.max(Math.max(r, g), b);
+        int cmin = Math.min(Math.min(r, g), b);
+        float brightness = ((float) cmax) / 255.0f;
+        float saturation = cmax != 0 ? ((float) (cmax - cmin)) / ((float) cmax) : 0;
+        float hue;
+        if (saturation == 0) {
+            hue = 0;
+        } else {
+            float redc = ((float) (cmax - r)) / ((float) (cmax - cmin));
+            float greenc = ((float) (cmax - g)) / ((float) (cmax - cmin));
+            float bluec = ((float) (cmax - b)) / ((float) (cmax - cmin));
+            if (r == cmax) {
+                hue = bluec - greenc;
+            } else if (g == cmax) {
+                hue = 2.0f + redc - bluec;
+            } else {
+                hue = 4.0f + greenc - redc;
+            }
+            hue = hue / 6.0f;
+            if (hue < 0) {
+                hue = hue + 1.0f;
+            }
+        }
+
+        // Adjust HSB values
+        hue = (hue + hueShift) % 1.0f;
+        saturation = Math.min(saturation * saturationScale, 1.0f);
+        brightness = Math.min(brightness * brightnessScale, 1.0f);
+
+        return Color.HSBtoRGB(hue, saturation, brightness) & 0xFFFFFF;
+    }
+
+    private static final class HsbAdjustment implements Adjustment {
+        private final float hueShift;
+        private final float saturationScale;
+        private final float brightnessScale;
+
+        HsbAdjustment(int hue, int saturation, int brightness) {
+            this.hueShift = hue / 360.0f;
+            this.saturationScale = saturation / 100.0f;
+            this.brightnessScale = brightness / 100.0f;
+        }
+
+        @Override
+        public int apply(int rgb) {
+            return hsbPixel(rgb, hueShift, saturationScale, brightnessScale);
+        }
+
+        int reference(int rgb) {
+            float[] hsb = Color.RGBtoHSB((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, null);
+            hsb[0] = (hsb[0] + hueShift) % 1.0f;
+            hsb[1] = Math.min(hsb[1] * saturationScale, 1.0f);
+            hsb[2] = Math.min(hsb[2] * brightnessScale, 1.0f);
+            return Color.HSBtoRGB(hsb[0], hsb[1], hsb[2]) & 0xFFFFFF;
+        }
+    }
+
+    // Every possible input colour has a slot, filled the first time that colour is seen. Filled slots
+    // carry 0xFF in the top byte, so 0 means "not computed yet"; racing threads write the same value.
+    private static final class ExactTable implements Table {
+        private final ColorTransform transform;
+        private int[] table;
+
+        ExactTable(ColorTransform transform, int[] table) {
+            this.transform = transform;
+            this.table = table;
+        }
+
+        @Override
+        public int lookup(int rgb) {
+            int index = rgb & 0xFFFFFF;
+            int value = table[index];
+            if (value == 0) {
+                value = 0xFF000000 | transform.apply(index);
+                table[index] = value;
+            }
+            return value & 0xFFFFFF;
+        }
+
+        @Override
+        public void apply(int[] src, int[] dst, int from, int to) {
+            int[] t = table;
+            for (int i = from; i < to; i++) {
+                int index = src[i] & 0xFFFFFF;
+                int value = t[index];
+                if (value == 0) {
+                    value = 0xFF000000 | transform.apply(index);
+                    t[index] = value;
+                }
+                dst[i] = value & 0xFFFFFF;
+            }
+        }
+
+        @Override
+        public synchronized long bytes() {
+            return table == null ? 0 : 4L * table.length;
+        }
+
+        @Override
+        public synchronized void release() {
+            if (table != null) {
+                synchronized (spareTables) {
+                    if (spareTables.size() < MAX_SPARE_TABLES) {
+                        Arrays.fill(table, 0);
+                        spareTables.offer(table);
+                    }
+                }
+                table = null;
+            }
+        }
+    }
+
+    // Samples the transform on a 33^3 grid and interpolates between the 8 surrounding grid points
+    private static final class LatticeTable implements Table {
+        private static final int[] CELL = new int[256];   // Lower grid index per channel value
+        private static final int[] WEIGHT = new int[256]; // Distance to it in 1/256ths of a cell
+
+        static {
+            for (int v = 0; v < 256; v++) {
+                int position = v * (LATTICE_POINTS - 1) * 256 / 255;
+                CELL[v] = Math.min(position >> 8, LATTICE_POINTS - 2);
+                WEIGHT[v] = position - (CELL[v] << 8);
+            }
+        }
+
+        private final int[] lattice = new int[LATTICE_POINTS * LATTICE_POINTS * LATTICE_POINTS];
+
+        LatticeTable(ColorTransform transform) {
+            int i = 0;
+            for (int r = 0; r < LATTICE_POINTS; r++) {
+                for (int g = 0; g < LATTICE_POINTS; g++) {
+                    for (int b = 0; b < LATTICE_POINTS; b++) {
+                        lattice[i++] = transform.apply(gridValue(r) << 16 | gridValue(g) << 8 | gridValue(b));
+                    }
+                }
+            }
+        }
+
+        private static int gridValue(int index) {
+            return Math.round(index * 255f / (LATTICE_POINTS - 1));
+        }
+
+        @Override
+        public int lookup(int rgb) {
+            int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+            int base = (CELL[r] * LATTICE_POINTS + CELL[g]) * LATTICE_POINTS + CELL[b];
+            int wr = WEIGHT[r], wg = WEIGHT[g], wb = WEIGHT[b];
+            int result = 0;
+            for (int shift = 16; shift >= 0; shift -= 8) {
+                int c000 = (lattice[base] >> shift) & 0xFF;
+                int c001 = (lattice[base + 1] >> shift) & 0xFF;
+                int c010 = (lattice[base + LATTICE_POINTS] >> shift) & 0xFF;
+                int c011 = (lattice[base + LATTICE_POINTS + 1] >> shift) & 0xFF;
+                int step = LATTICE_POINTS * LATTICE_POINTS;
+                int c100 = (lattice[base + step] >> shift) & 0xFF;
+                int c101 = (lattice[base + step + 1] >> shift) & 0xFF;
+                int c110 = (lattice[base + step + LATTICE_POINTS] >> shift) & 0xFF;
+                int c111 = (lattice[base + step + LATTICE_POINTS + 1] >> shift) & 0xFF;
+                // Interpolate along b, then g, then r, in 8.8 fixed point
+                int c00 = (c000 << 8) + (c001 - c000) * wb;
+                int c01 = (c010 << 8) + (c011 - c010) * wb;
+                int c10 = (c100 << 8) + (c101 - c100) * wb;
+                int c11 = (c110 << 8) + (c111 - c110) * wb;
+                int c0 = (c00 << 8) + (c01 - c00) * wg;
+                int c1 = (c10 << 8) + (c11 - c10) * wg;
+                long c = (((long) c0 << 8) + (long) (c1 - c0) * wr + (1 << 23)) >> 24;
+                result |= clamp((int) c) << shift;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Parallel 8-connected component labelling. Row bands are labelled independently with union-find over
+// pixel indices, the seams between bands are merged, and a final pass assigns compact labels in raster
+// order while collecting per-component statistics.
+public final class ComponentLabeler {
+    // Upper bound for the per-band statistics arrays of the final pass
+    private static final long STATS_BUDGET_BYTES = 64L << 20;
+    private static final int STATS_BYTES_PER_COMPONENT = 5 * 4 + 2 * 8;
+
+    private ComponentLabeler() {
+    }
+
+    // Bounding box is inclusive; firstIndex is the top-most, left-most pixel of the component
+    public record Component(int label, int minX, int minY, int maxX, int maxY, long area,
+                           double centroidX, double centroidY, int firstIndex) {
+        public int width() {
+            return maxX - minX + 1;
+        }
+
+        public int height() {
+            return maxY - minY + 1;
+        }
+
+        public Rectangle bounds() {
+            return new Rectangle(minX, minY, width(), height());
+        }
+    }
+
+    // labels[y * width + x] is 0 for background, otherwise the 1-based index into components
+    public record Labeling(int[] labels, int width, int height, List<Component> components) {
+    }
+
+    // Set pixels of the mask are foreground
+    public static Labeling label(BitMask mask) {
+        return label(mask, new int[mask.width() * mask.height()]);
+    }
+
+    // Labels into width * height ints supplied by the caller, e.g. leased from a BufferPool. Their old
+    // contents do not matter, and the Labeling holds on to them.
+    public static Labeling label(BitMask mask, int[] labels) {
+        int width = mask.width();
+        int height = mask.height();
+        if (labels.length != width * height) {
+            throw new IllegalArgumentException("Expected " + width * height + " labels, got " + labels.length);
+        }
+        if (labels.length == 0) {
+            return new Labeling(labels, width, height, List.of());
+        }
+        int bandRows = Math.max(1, (height + 2 * ComputePool.getParallelism() - 1) / (2 * ComputePool.getParallelism()));
+        int bands = (height + bandRows - 1) / bandRows;
+
+        // Pass 1: provisional labels per band. labels[] doubles as the union-find parent array,
+        // storing parent index + 1 so that 0 stays background; a root points at itself.
+        ComputePool.forEachTile(height, bandRows, (startY, endY) -> labelBand(mask, labels, width, startY, endY));
+
+        // Join components that touch across the seams between bands
+        for (int b = 1; b < bands; b++) {
+            int y = b * bandRows;
+            for (int x = mask.nextSetBit(y, 0); x >= 0; x = mask.nextSetBit(y, x + 1)) {
+                int i = y * width + x;
+                for (int dx = -1; dx <= 1; dx++) {
+                    int nx = x + dx;
+                    if (nx >= 0 && nx < width && labels[i - width + dx] != 0) {
+                        union(labels, i, i - width + dx);
+                    }
+                }
+            }
+        }
+
+        // Pass 2: point every pixel straight at its root and collect the roots of each band in raster order.
+        // Roots are the smallest index of their component, so they come out sorted by first pixel.
+        int[][] roots = new int[bands][];
+        int[] rootCounts = new int[bands];
+        ComputePool.forEachTile(height, bandRows, (startY, endY) -> {
+            int band = startY / bandRows;
+            int[] found = new int[16];
+            int count = 0;
+            for (int i = startY * width, end = endY * width; i < end; i++) {
+                if (labels[i] == 0) {
+                    continue;
+                }
+                int root = find(labels, i);
+                if (root == i) {
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = i;
+                } else {
+                    labels[i] = root + 1;
+                }
+            }
+            roots[band] = found;
+            rootCounts[band] = count;
+        });
+
+        // Number the roots; a negative value marks a root carrying its final label
+        int total = 0;
+        int[] firstLabel = new int[bands];
+        for (int b = 0; b < bands; b++) {
+            firstLabel[b] = total + 1;
+            total += rootCounts[b];
+        }
+        int componentCount = total;
+        ComputePool.forEachTile(bands, 1, (startBand, endBand) -> {
+            for (int b = startBand; b < endBand; b++) {
+                for (int k = 0; k < rootCounts[b]; k++) {
+                    labels[roots[b][k]] = -(firstLabel[b] + k);
+                }
+            }
+        });
+
+        // Pass 3: final labels and statistics, one set of accumulators per stripe
+        int stripes = (int) Math.max(1, Math.min(ComputePool.getParallelism(),
+                STATS_BUDGET_BYTES / Math.max(1L, (long) componentCount * STATS_BYTES_PER_COMPONENT)));
+        int stripeRows = (height + stripes - 1) / stripes;
+        Stats[] stats = new Stats[(height + stripeRows - 1) / stripeRows];
+        ComputePool.forEachTile(height, stripeRows, (startY, endY) -> {
+            Stats local = new Stats(componentCount);
+            for (int y = startY; y < endY; y++) {
+                for (int x = 0, i = y * width; x < width; x++, i++) {
+                    int value = labels[i];
+                    if (value == 0) {
+                        continue;
+                    }
+                    int label;
+                    if (value < 0) {
+                        label = -value;
+                        labels[i] = label;
+                    } else {
+                        // Root may already have been rewritten by its own stripe
+                        label = Math.abs(labels[value - 1]);
+                        labels[i] = label;
+                    }
+                    local.add(label - 1, x, y);
+                }
+            }
+            stats[startY / stripeRows] = local;
+        });
+
+        Stats merged = stats[0];
+        for (int s = 1; s < stats.length; s++) {
+            merged.merge(stats[s]);
+        }
+        List<Component> components = new ArrayList<>(componentCount);
+        for (int b = 0; b < bands; b++) {
+            for (int k = 0; k < rootCounts[b]; k++) {
+                int c = firstLabel[b] + k - 1;
+                long area = merged.area[c];
+                components.add(new Component(c + 1, merged.minX[c], merged.minY[c], merged.maxX[c], merged.maxY[c], area,
+                        (double) merged.sumX[c] / area, (double) merged.sumY[c] / area, roots[b][k]));
+            }
+        }
+        return new Labeling(labels, width, height, components);
+    }
+
+    // Looks only at neighbours already visited inside the band: W, NW, N and NE. Those are foreground
+    // exactly when they already carry a label, so the mask is only used to find the set pixels.
+    private static void labelBand(BitMask mask, int[] labels, int width, int startY, int endY) {
+        for (int y = startY; y < endY; y++) {
+            int rowStart = y * width;
+            // A reused array still holds the last labelling
+            Arrays.fill(labels, rowStart, rowStart + width, 0);
+            for (int x = mask.nextSetBit(y, 0); x >= 0; x = mask.nextSetBit(y, x + 1)) {
+                int i = rowStart + x;
+                labels[i] = i + 1;
+                if (x > 0 && labels[i - 1] != 0) {
+                    union(labels, i, i - 1);
+                }
+                if (y > startY) {
+                    int above = i - width;
+                    if (x > 0 && labels[above - 1] != 0) {
+                        union(labels, i, above - 1);
+                    }
+                    if (labels[above] != 0) {
+                        union(labels, i, above);
+                    }
+                    if (x < width - 1 && labels[above + 1] != 0) {
+                        union(labels, i, above + 1);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        int root = i;
+        while (parent[root] - 1 != root) {
+            root = parent[root] - 1;
+        }
+        return root;
+    }
+
+    // Links the larger root under the smaller one and compresses both paths
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        int root = Math.min(rootA, rootB);
+        if (rootA != root) {
+            parent[rootA] = root + 1;
+        }
+        if (rootB != root) {
+            parent[rootB] = root + 1;
+        }
+        compress(parent, a, root);
+        compress(parent, b, root);
+    }
+
+    private static void compress(int[] parent, int i, int root) {
+        while (i != root) {
+            int next = parent[i] - 1;
+            parent[i] = root + 1;
+            i = next;
+        }
+    }
+
+    private static final class Stats {
+        final int[] minX, minY, maxX, maxY, area;
+        final long[] sumX, sumY;
+
+        Stats(int count) {
+            minX = new int[count];
+            minY = new int[count];
+            maxX = new int[count];
+            maxY = new int[count];
+            area = new int[count];
+            sumX = new long[count];
+            sumY = new long[count];
+            Arrays.fill(minX, Integer.MAX_VALUE);
+            Arrays.fill(minY, Integer.MAX_VALUE);
+            Arrays.fill(maxX, -1);
+            Arrays.fill(maxY, -1);
+        }
+
+        void add(int c, int x, int y) {
+            if (x < minX[c]) minX[c] = x;
+            if (x > maxX[c]) maxX[c] = x;
+            if (y < minY[c]) minY[c] = y;
+            if (y > maxY[c]) maxY[c] = y;
+            area[c]++;
+            sumX[c] += x;
+            sumY[c] += y;
+        }
+
+        void merge(Stats other) {
+            for (int c = 0; c < area.length; c++) {
+                if (other.area[c] == 0) {
+                    continue;
+                }
+                minX[c] = Math.min(minX[c], other.minX[c]);
+                minY[c] = Math.min(minY[c], other.minY[c]);
+                maxX[c] = Math.max(maxX[c], other.maxX[c]);
+                maxY[c] = Math.max(maxY[c], other.maxY[c]);
+                area[c] += other.area[c];
+                sumX[c] += other.sumX[c];
+                sumY[c] += other.sumY[c];
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+// Application-wide work-stealing pool shared by every processing stage.
+// Size it with -Dimageedit.parallelism=N or setParallelism(N); defaults to the number of cores.
+public final class ComputePool {
+    // Aim for tiles of about 64K pixels (256 KB of ARGB), small enough to stay in L2 and to balance well
+    private static final int TARGET_TILE_PIXELS = 1 << 16;
+
+    private static volatile ForkJoinPool pool = createPool(Integer.getInteger("imageedit.parallelism",
+            Runtime.getRuntime().availableProcessors()));
+
+    private ComputePool() {
+    }
+
+    // Work over a half-open range of rows
+    public interface RowTask {
+        void run(int startRow, int endRow);
+    }
+
+    public static ForkJoinPool pool() {
+        return pool;
+    }
+
+    public static int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    // Replaces the pool; work already submitted to the old one still runs to completion
+    public static synchronized void setParallelism(int parallelism) {
+        if (parallelism == pool.getParallelism()) {
+            return;
+        }
+        ForkJoinPool old = pool;
+        pool = createPool(parallelism);
+        old.shutdown();
+    }
+
+    // Tasks waiting to run: external submissions plus tiles queued on the workers
+    public static long getQueueDepth() {
+        ForkJoinPool current = pool;
+        return current.getQueuedSubmissionCount() + current.getQueuedTaskCount();
+    }
+
+    public static int getActiveThreadCount() {
+        return pool.getActiveThreadCount();
+    }
+
+    // Rows per tile for an image of the given width
+    public static int tileRows(int width) {
+        return Math.max(1, TARGET_TILE_PIXELS / Math.max(1, width));
+    }
+
+    // Runs task over [0, height) in tiles of tileRows rows and waits for all of them
+    public static void forEachTile(int height, int tileRows, RowTask task) {
+        if (height <= 0) {
+            return;
+        }
+        int rows = Math.max(1, tileRows);
+        if (height <= rows) {
+            task.run(0, height);
+            return;
+        }
+        TileAction action = new TileAction(task, 0, height, rows);
+        if (ForkJoinTask.getPool() == pool) {
+            action.invoke(); // Already on a worker, just fork into the current pool
+        } else {
+            pool.invoke(action);
+        }
+    }
+
+    public static boolean awaitQuiescence(long timeout, TimeUnit unit) {
+        return pool.awaitQuiescence(timeout, unit);
+    }
+
+    private static ForkJoinPool createPool(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        ForkJoinPool.ForkJoinWorkerThreadFactory factory = p -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("imageedit-worker-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ForkJoinPool(parallelism, factory, null, false);
+    }
+
+    // Splits the row range in halves until it is a single tile
+    private static final class TileAction extends RecursiveAction {
+        private final RowTask task;
+        private final int start;
+        private final int end;
+        private final int tileRows;
+
+        TileAction(RowTask task, int start, int end, int tileRows) {
+            this.task = task;
+            this.start = start;
+            this.end = end;
+            this.tileRows = tileRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= tileRows) {
+                task.run(start, end);
+                return;
+            }
+            int tiles = (end - start + tileRows - 1) / tileRows;
+            int middle = start + (tiles / 2) * tileRows;
+            invokeAll(new TileAction(task, start, middle, tileRows), new TileAction(task, middle, end, tileRows));
+        }
+    }
+}
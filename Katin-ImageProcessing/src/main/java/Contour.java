@@ -0,0 +1,172 @@
+import java.awt.*;
+import java.awt.geom.Path2D;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+// A closed polygon in pixel coordinates, ordered clockwise. Vertices sit on pixel positions; the
+// polygon is implicitly closed from the last vertex back to the first.
+public final class Contour {
+    private final int[] xs;
+    private final int[] ys;
+    private Path2D path;
+
+    public Contour(int[] xs, int[] ys) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("Vertex arrays differ in length");
+        }
+        this.xs = xs;
+        this.ys = ys;
+    }
+
+    public int size() {
+        return xs.length;
+    }
+
+    public int x(int index) {
+        return xs[index];
+    }
+
+    public int y(int index) {
+        return ys[index];
+    }
+
+    // Interleaved x0, y0, x1, y1, ...
+    public int[] coordinates() {
+        int[] result = new int[xs.length * 2];
+        for (int i = 0; i < xs.length; i++) {
+            result[2 * i] = xs[i];
+            result[2 * i + 1] = ys[i];
+        }
+        return result;
+    }
+
+    // Writes the vertices as a JSON array of [x, y] pairs
+    public void writeJson(Appendable out) throws IOException {
+        out.append('[');
+        for (int i = 0; i < xs.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append('[').append(Integer.toString(xs[i])).append(',').append(Integer.toString(ys[i])).append(']');
+        }
+        out.append(']');
+    }
+
+    public Rectangle getBounds() {
+        if (xs.length == 0) {
+            return new Rectangle();
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < xs.length; i++) {
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    // The same polygon moved by (dx, dy), e.g. from region to image coordinates
+    public Contour translate(int dx, int dy) {
+        int[] movedX = new int[xs.length];
+        int[] movedY = new int[ys.length];
+        for (int i = 0; i < xs.length; i++) {
+            movedX[i] = xs[i] + dx;
+            movedY[i] = ys[i] + dy;
+        }
+        return new Contour(movedX, movedY);
+    }
+
+    // The polygon through pixel centres, ready for Graphics2D.draw
+    public Path2D toPath() {
+        if (path == null) {
+            Path2D.Float result = new Path2D.Float(Path2D.WIND_NON_ZERO, xs.length + 1);
+            if (xs.length > 0) {
+                result.moveTo(xs[0] + 0.5f, ys[0] + 0.5f);
+                for (int i = 1; i < xs.length; i++) {
+                    result.lineTo(xs[i] + 0.5f, ys[i] + 0.5f);
+                }
+                result.closePath();
+            }
+            path = result;
+        }
+        return path;
+    }
+
+    // Douglas-Peucker: drops vertices that lie within tolerance pixels of the simplified outline
+    public Contour simplify(double tolerance) {
+        int n = xs.length;
+        if (n <= 3 || tolerance <= 0) {
+            return this;
+        }
+        // Split the ring at vertex 0 and the vertex farthest from it, then simplify both halves
+        int far = 0;
+        long farDistance = -1;
+        for (int i = 1; i < n; i++) {
+            long dx = xs[i] - xs[0], dy = ys[i] - ys[0];
+            if (dx * dx + dy * dy > farDistance) {
+                farDistance = dx * dx + dy * dy;
+                far = i;
+            }
+        }
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[far] = true;
+        Deque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[]{0, far});
+        ranges.push(new int[]{far, n});
+        double limit = tolerance * tolerance;
+        while (!ranges.isEmpty()) {
+            int[] range = ranges.pop();
+            int from = range[0], to = range[1];
+            int ax = xs[from], ay = ys[from];
+            int bx = xs[to % n], by = ys[to % n];
+            double worst = limit;
+            int split = -1;
+            for (int i = from + 1; i < to; i++) {
+                double distance = squaredDistanceToSegment(xs[i], ys[i], ax, ay, bx, by);
+                if (distance > worst) {
+                    worst = distance;
+                    split = i;
+                }
+            }
+            if (split >= 0) {
+                keep[split] = true;
+                ranges.push(new int[]{from, split});
+                ranges.push(new int[]{split, to});
+            }
+        }
+        int count = 0;
+        int[] newXs = new int[n];
+        int[] newYs = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                newXs[count] = xs[i];
+                newYs[count] = ys[i];
+                count++;
+            }
+        }
+        return new Contour(Arrays.copyOf(newXs, count), Arrays.copyOf(newYs, count));
+    }
+
+    private static double squaredDistanceToSegment(int px, int py, int ax, int ay, int bx, int by) {
+        double dx = bx - ax, dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSquared));
+        double ex = ax + t * dx - px, ey = ay + t * dy - py;
+        return ex * ex + ey * ey;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            writeJson(builder);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // StringBuilder never throws
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,80 @@
+import java.util.Arrays;
+
+// Moore-neighbour tracing of the outer border of labelled components
+public final class ContourTracer {
+    // Clockwise on screen (y grows downwards), starting east
+    private static final int[] DX = {1, 1, 0, -1, -1, -1, 0, 1};
+    private static final int[] DY = {0, 1, 1, 1, 0, -1, -1, -1};
+    // Direction index of the offset (dx, dy), indexed by (dy + 1) * 3 + (dx + 1)
+    private static final int[] DIRECTION = {5, 6, 7, 4, -1, 0, 3, 2, 1};
+
+    private ContourTracer() {
+    }
+
+    // Walks the outer border of component clockwise from its first pixel. Only the corners are kept,
+    // pixels along a straight run are dropped since they lie on the segment between the corners.
+    public static Contour trace(ComponentLabeler.Labeling labeling, ComponentLabeler.Component component) {
+        int[] labels = labeling.labels();
+        int width = labeling.width();
+        int height = labeling.height();
+        int label = component.label();
+        int startX = component.firstIndex() % width;
+        int startY = component.firstIndex() / width;
+
+        int[] xs = new int[16];
+        int[] ys = new int[16];
+        int count = 0;
+
+        int x = startX, y = startY;
+        // The first pixel in raster order has background to its west
+        int backtrack = 4;
+        int firstMove = -1;
+        int lastMove = -1;
+        int maxSteps = 4 * (int) Math.min(Integer.MAX_VALUE / 4, component.area() + 1);
+        for (int step = 0; step < maxSteps; step++) {
+            int move = -1;
+            for (int k = 1; k <= 8; k++) {
+                int d = (backtrack + k) & 7;
+                int nx = x + DX[d], ny = y + DY[d];
+                if (nx >= 0 && ny >= 0 && nx < width && ny < height && labels[ny * width + nx] == label) {
+                    move = d;
+                    break;
+                }
+            }
+            if (move < 0) {
+                break; // Single isolated pixel
+            }
+            // Jacob's criterion: back at the start about to repeat the first move
+            if (x == startX && y == startY && move == firstMove) {
+                break;
+            }
+            if (firstMove < 0) {
+                firstMove = move;
+            }
+            if (move != lastMove) {
+                if (count == xs.length) {
+                    xs = Arrays.copyOf(xs, count * 2);
+                    ys = Arrays.copyOf(ys, count * 2);
+                }
+                xs[count] = x;
+                ys[count] = y;
+                count++;
+                lastMove = move;
+            }
+            // The cell checked just before the move is background; continue the scan from it
+            int previous = (move + 7) & 7;
+            int bx = x + DX[previous], by = y + DY[previous];
+            x += DX[move];
+            y += DY[move];
+            backtrack = DIRECTION[(by - y + 1) * 3 + (bx - x + 1)];
+        }
+        if (count == 0) {
+            return new Contour(new int[]{startX}, new int[]{startY});
+        }
+        // The start is a corner only if the walk turns there
+        if (count > 1 && lastMove == firstMove) {
+            return new Contour(Arrays.copyOfRange(xs, 1, count), Arrays.copyOfRange(ys, 1, count));
+        }
+        return new Contour(Arrays.copyOf(xs, count), Arrays.copyOf(ys, count));
+    }
+}
@@ -20,10 +20,10 @@ public class DropPanel extends JPanel {
                     if (transferable.isDataFlavorSupported(DataFlavor.javaFileListFlavor)) {
                         List<File> files = (List<File>) transferable.getTransferData(DataFlavor.javaFileListFlavor);
                         if (!files.isEmpty()) {
-                            File imageFile = files.get(0);
-                            System.out.println("Dropped image file: " + imageFile.getAbsolutePath());
+                            System.out.println("Dropped " + files.size() + " file(s), first: " + files.get(0).getAbsolutePath());
                             ImageSelectForm parentForm = (ImageSelectForm) SwingUtilities.getWindowAncestor(DropPanel.this);
-                            parentForm.displayImage(imageFile);
+                            // Only queued here; nothing is decoded on the EDT
+                            parentForm.displayImages(files);
                         }
                     }
                 } catch (Exception ex) {
@@ -0,0 +1,126 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+// Grayscale conversion, Sobel gradient and thresholding fused into one parallel pass over row tiles.
+// Produces the same mask as convertToGrayscale -> applySobelEdgeDetection -> binarizeImage without
+// the intermediate images.
+public final class EdgeDetector {
+    // Tiles recompute one halo row above and below, so keep them tall enough for that to be cheap
+    private static final int MIN_TILE_ROWS = 32;
+
+    private EdgeDetector() {
+    }
+
+    // Set where the gradient magnitude is above threshold
+    public static BitMask detect(BufferedImage image, int threshold) {
+        return detect(image, threshold, new BitMask(image.getWidth(), image.getHeight()));
+    }
+
+    // Writes every word of mask, which must be the size of the image, so a reused mask needs no clearing
+    public static BitMask detect(BufferedImage image, int threshold, BitMask mask) {
+        try (StageTimer timer = StageTimer.start("edges", image)) {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            if (mask.width() != width || mask.height() != height) {
+                throw new IllegalArgumentException("Mask is " + mask.width() + "x" + mask.height() + ", image is " + width + "x" + height);
+            }
+
+            // The old path stored the clamped magnitude in a gray image and read it back, so a pixel is an
+            // edge when roundTrip(min(magnitude, 255)) > threshold. That is monotonic in the magnitude, so it
+            // reduces to magnitude >= minimum, i.e. gx^2 + gy^2 >= minimum^2 with no square root.
+            int minimum = 256;
+            while (minimum > 0 && PixelAccess.grayRoundTrip(minimum - 1) > threshold) {
+                minimum--;
+            }
+            // Even the clamped maximum of 255 may not pass
+            long squaredThreshold = minimum > 255 ? Long.MAX_VALUE : (long) minimum * minimum;
+            boolean border = PixelAccess.grayRoundTrip(0) > threshold;
+
+            BufferPool pool = BufferPool.shared();
+            BufferedImage gray = GraySource.isDirect(image) ? null
+                    : ImageProcessorObject.convertToGrayscale(image, pool.lease(width, height, BufferedImage.TYPE_BYTE_GRAY));
+            GraySource source = GraySource.of(image, gray);
+            int tileRows = Math.max(MIN_TILE_ROWS, ComputePool.tileRows(width));
+            // Squared magnitudes fit an int; the border columns get sentinels that pass exactly when border does
+            int minimumSquared = (int) Math.min(Integer.MAX_VALUE, squaredThreshold);
+            int borderValue = border ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+            ComputePool.forEachTile(height, tileRows, (startY, endY) -> {
+                // Row scratch comes from the pool too: a tile's four rows add up over a large image
+                int[] above = pool.leaseInts(width);
+                int[] row = pool.leaseInts(width);
+                int[] below = pool.leaseInts(width);
+                int[] squared = pool.leaseInts(width);
+                int[] packed = pool.leaseInts(width);
+                if (startY > 0) {
+                    source.levels(startY - 1, above, packed);
+                }
+                source.levels(startY, row, packed);
+                for (int y = startY; y < endY; y++) {
+                    boolean borderRow = y == 0 || y == height - 1 || width < 3;
+                    if (borderRow) {
+                        for (int x = 0; x < width; x += 64) {
+                            mask.setWord(x, y, border ? -1L : 0L);
+                        }
+                    } else {
+                        source.levels(y + 1, below, packed);
+                        SimdKernels.sobelSquared(above, row, below, width, squared);
+                        squared[0] = borderValue;
+                        squared[width - 1] = borderValue;
+                        // Bits are gathered into a word and stored once per 64 pixels
+                        for (int x = 0; x < width; x += 64) {
+                            mask.setWord(x, y, SimdKernels.thresholdInts(squared, x, Math.min(64, width - x), minimumSquared));
+                        }
+                    }
+                    int[] recycled = above;
+                    above = row;
+                    row = below;
+                    below = recycled;
+                    if (borderRow && y + 1 < endY) {
+                        // The border branch did not read the next row, fetch it for the following iteration
+                        source.levels(y + 1, row, packed);
+                    }
+                }
+                pool.release(above);
+                pool.release(row);
+                pool.release(below);
+                pool.release(squared);
+                pool.release(packed);
+            });
+            pool.release(gray);
+            return mask;
+        }
+    }
+
+    // Gray levels of one row, as getRGB on the TYPE_BYTE_GRAY conversion of the image would report them.
+    // packed is a row of scratch for sources that have to convert their pixels first.
+    private interface GraySource {
+        void levels(int y, int[] row, int[] packed);
+
+        // Opaque RGB is read directly; anything else (alpha, indexed, gray) goes through the regular conversion
+        static boolean isDirect(BufferedImage image) {
+            int type = image.getType();
+            return !image.getColorModel().hasAlpha()
+                    && (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_3BYTE_BGR);
+        }
+
+        // gray is the converted image when the source is not direct
+        static GraySource of(BufferedImage image, BufferedImage gray) {
+            int width = image.getWidth();
+            if (PixelAccess.isCompactBgr(image)) {
+                // JPEGs decode to BGR bytes; packing a row at a time avoids a 4 byte per pixel copy of the image
+                byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                return (y, row, packed) -> {
+                    PixelAccess.bgrPixels(data, y * width, packed, 0, width);
+                    SimdKernels.grayLevels(packed, 0, row, width);
+                };
+            }
+            if (isDirect(image)) {
+                // Same weights and rounding as Java2D's RGB to ByteGray blit
+                int[] pixels = PixelAccess.rgb(image);
+                return (y, row, packed) -> SimdKernels.grayLevels(pixels, y * width, row, width);
+            }
+            PixelAccess.GrayPlane plane = PixelAccess.gray(gray);
+            return (y, row, packed) -> plane.levels(y * width, row, width);
+        }
+    }
+}
@@ -0,0 +1,454 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.UnaryOperator;
+
+// Non-destructive editing: the source image stays untouched and the edit is an ordered list of
+// operations. The result of every prefix of the list is cached under a key made of the operations up
+// to that point, so changing a late parameter reuses everything before it, and undo/redo just switch
+// back to an earlier list whose results are usually still cached.
+public final class EditPipeline {
+    static final long DEFAULT_BUDGET_BYTES = Long.getLong("imageedit.cacheMB", 512) << 20;
+    private static final int MAX_UNDO = 100;
+
+    // What the operations so far have produced. Stages fill the slot they own and pass the others on,
+    // so the same image or mask object is shared by every state downstream of where it was made.
+    // region limits the analysis stages: gray, gradient, edges and segmentation cover only its bounds.
+    public record EditState(BufferedImage color, Roi region, BufferedImage gray, BufferedImage gradient,
+                            BitMask edges, BitMask segmentation, BufferedImage output, long ownBytes) {
+        static EditState of(BufferedImage source) {
+            return new EditState(source, null, null, null, null, null, null, 0);
+        }
+
+        // The image to show: the latest rendered output, or the colour image
+        public BufferedImage display() {
+            return output != null ? output : color;
+        }
+
+        // The part of the colour image the analysis stages work on, sharing its pixels
+        BufferedImage analysed() {
+            if (region == null) {
+                return color;
+            }
+            Rectangle bounds = region.bounds();
+            return color.getSubimage(bounds.x, bounds.y, bounds.width, bounds.height);
+        }
+
+        // A mask over analysed() with the pixels outside the region cleared
+        BitMask clip(BitMask mask) {
+            return region == null ? mask : region.clip(mask);
+        }
+
+        EditState withColor(BufferedImage image) {
+            // A new colour image invalidates everything derived from the old one
+            return new EditState(image, region, null, null, null, null, null, bytes(image));
+        }
+
+        EditState withRegion(Roi roi) {
+            return new EditState(color, roi, null, null, null, null, null, 0);
+        }
+
+        EditState withGray(BufferedImage image) {
+            return new EditState(color, region, image, null, null, segmentation, null, bytes(image));
+        }
+
+        EditState withGradient(BufferedImage image) {
+            return new EditState(color, region, gray, image, null, segmentation, null, bytes(image));
+        }
+
+        EditState withEdges(BitMask mask) {
+            return new EditState(color, region, gray, gradient, mask, segmentation, null, bytes(mask));
+        }
+
+        EditState withSegmentation(BitMask mask) {
+            return new EditState(color, region, gray, gradient, edges, mask, null, bytes(mask));
+        }
+
+        EditState withOutput(BufferedImage image) {
+            return new EditState(color, region, gray, gradient, edges, segmentation, image, bytes(image));
+        }
+    }
+
+    // One step of the edit. Implementations are records, so toString() describes the operation and
+    // its parameters completely and doubles as its cache key.
+    public interface Operation {
+        // Returns null if cancelled reports true before the stage is done
+        EditState apply(EditState input, BooleanSupplier cancelled);
+
+        // Position in the canonical order set() keeps the list in
+        int order();
+
+        // set() replaces the operation in the same slot: by default one of each kind
+        default Object slot() {
+            return getClass();
+        }
+
+        // Where the displayed image can change when this operation changes, given the bounds of the
+        // region the analysis stages are limited to. Analysis only shows through the outlines drawn
+        // inside the region, give or take the antialiased stroke.
+        default Rectangle changes(Rectangle region, Rectangle image) {
+            Rectangle grown = new Rectangle(region);
+            grown.grow(1, 1);
+            return grown;
+        }
+    }
+
+    // roi limits the adjustment, null for the whole image. Each region has its own slot, so
+    // adjustments of different areas stack.
+    public record Hsb(int hue, int saturation, int brightness, Roi roi) implements Operation {
+        public Hsb(int hue, int saturation, int brightness) {
+            this(hue, saturation, brightness, null);
+        }
+
+        @Override
+        public EditState apply(EditState input, BooleanSupplier cancelled) {
+            // Outside the ROI the input is copied, so the result composites over the cached earlier state.
+            // The processor lives for this one render, so its table goes back as soon as it is done.
+            ImageProcessor processor = new ImageProcessor(input.color());
+            try {
+                BufferedImage adjusted = processor.render(hue, saturation, brightness, roi, cancelled);
+                return adjusted == null ? null : input.withColor(adjusted);
+            } finally {
+                processor.release();
+            }
+        }
+
+        @Override
+        public int order() {
+            return 0;
+        }
+
+        @Override
+        public Object slot() {
+            return roi == null ? Hsb.class : List.of(Hsb.class, roi);
+        }
+
+        @Override
+        public Rectangle changes(Rectangle region, Rectangle image) {
+            return roi == null ? image : roi.bounds();
+        }
+    }
+
+    // Limits the analysis stages after it to a region, null for the whole image, so outlining an
+    // area of a large image costs what that area costs
+    public record Region(Roi roi) implements Operation {
+        public Region {
+            if (roi != null && roi.isEmpty()) {
+                throw new IllegalArgumentException("Empty region");
+            }
+        }
+
+        @Override
+        public EditState apply(EditState input, BooleanSupplier cancelled) {
+            return input.withRegion(roi);
+        }
+
+        @Override
+        public int order() {
+            return 1;
+        }
+
+        @Override
+        public Rectangle changes(Rectangle region, Rectangle image) {
+            // Outlines appear in its own region; a region it replaces is covered by the operation it replaced
+            return Operation.super.changes(roi == null ? image : roi.bounds(), image);
+        }
+    }
+
+    public record Grayscale() implements Operation {
+        @Override
+        public EditState apply(EditState input, BooleanSupplier cancelled) {
+            return input.withGray(ImageProcessorObject.convertToGrayscale(input.analysed()));
+        }
+
+        @Override
+        public int order() {
+            return 2;
+        }
+    }
+
+    public record Sobel() implements Operation {
+        @Override
+        public EditState apply(EditState input, BooleanSupplier cancelled) {
+            BufferedImage gray = input.gray() != null ? input.gray() : ImageProcessorObject.convertToGrayscale(input.analysed());
+            return input.withGradient(ImageProcessorObject.applySobelEdgeDetection(gray));
+        }
+
+        @Override
+        public int order() {
+            return 3;
+        }
+    }
+
+    // Ahead of the threshold, so changing the threshold leaves it cached
+    public record Segmentation() implements Operation {
+        @Override
+        public EditState apply(EditState input, BooleanSupplier cancelled) {
+            return input.withSegmentation(input.clip(ImageProcessorObject.performColorBasedSegmentation(input.analysed())));
+        }
+
+        @Override
+        public int order() {
+            return 4;
+        }
+    }
+
+    public record Threshold(int threshold) implements Operation {
+        @Override
+        public EditState apply(EditState input, BooleanSupplier cancelled) {
+            if (input.gradient() == null) {
+                // No separate gradient to reuse, the fused pass gives the same mask
+                return input.withEdges(input.clip(EdgeDetector.detect(input.analysed(), threshold)));
+            }
+            return input.withEdges(input.clip(ImageProcessorObject.binarizeImage(input.gradient(), threshold)));
+        }
+
+        @Override
+        public int order() {
+            return 5;
+        }
+    }
+
+    // Draws the outlines onto the colour image, so it shows on top of any HSB adjustment
+    public record Outline(double tolerance) implements Operation {
+        @Override
+        public EditState apply(EditState input, BooleanSupplier cancelled) {
+            BufferedImage analysed = input.analysed();
+            BitMask edges = input.edges() != null ? input.edges() : input.clip(EdgeDetector.detect(analysed, 128));
+            BitMask segmentation = input.segmentation() != null ? input.segmentation()
+                    : input.clip(ImageProcessorObject.performColorBasedSegmentation(analysed));
+            if (cancelled.getAsBoolean()) {
+                return null;
+            }
+            List<Contour> contours = ImageProcessorObject.findObjects(edges, segmentation, tolerance);
+            if (input.region() != null) {
+                Rectangle bounds = input.region().bounds();
+                contours = contours.stream().map(contour -> contour.translate(bounds.x, bounds.y)).toList();
+            }
+            return input.withOutput(ObjectOutline.drawContours(input.color(), contours));
+        }
+
+        @Override
+        public int order() {
+            return 6;
+        }
+    }
+
+    // The stages the Outline button adds: the separate steps, so a threshold change reuses the gradient
+    public static List<Operation> outlineStages() {
+        return outlineStages(null);
+    }
+
+    // The same, limited to a region (null for the whole image)
+    public static List<Operation> outlineStages(Roi region) {
+        return List.of(new Region(region), new Grayscale(), new Sobel(), new Segmentation(), new Threshold(128),
+                new Outline(ObjectOutline.OUTLINE_TOLERANCE));
+    }
+
+    private final EditState source;
+    private final long budgetBytes;
+    private final LinkedHashMap<String, EditState> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+    private List<Operation> operations = List.of();
+    private final Deque<List<Operation>> undo = new ArrayDeque<>();
+    private final Deque<List<Operation>> redo = new ArrayDeque<>();
+
+    public EditPipeline(BufferedImage source) {
+        this(source, DEFAULT_BUDGET_BYTES);
+    }
+
+    public EditPipeline(BufferedImage source, long budgetBytes) {
+        this.source = EditState.of(source);
+        this.budgetBytes = budgetBytes;
+    }
+
+    public BufferedImage source() {
+        return source.color();
+    }
+
+    public synchronized List<Operation> operations() {
+        return operations;
+    }
+
+    // Replaces the operation of the same kind, or inserts it at its place in the canonical order
+    public void set(Operation operation) {
+        setAll(List.of(operation));
+    }
+
+    // Sets several operations as a single undo step
+    public void setAll(List<Operation> added) {
+        edit(current -> {
+            List<Operation> next = new ArrayList<>(current);
+            for (Operation operation : added) {
+                next.removeIf(existing -> existing.slot().equals(operation.slot()));
+                int index = 0;
+                while (index < next.size() && next.get(index).order() <= operation.order()) {
+                    index++;
+                }
+                next.add(index, operation);
+            }
+            return next;
+        });
+    }
+
+    // One undoable step; a change that leaves the list as it was records nothing
+    public synchronized void edit(UnaryOperator<List<Operation>> change) {
+        List<Operation> next = List.copyOf(change.apply(operations));
+        if (next.equals(operations)) {
+            return;
+        }
+        undo.push(operations);
+        if (undo.size() > MAX_UNDO) {
+            undo.removeLast();
+        }
+        redo.clear();
+        operations = next;
+    }
+
+    public synchronized boolean canUndo() {
+        return !undo.isEmpty();
+    }
+
+    public synchronized boolean canRedo() {
+        return !redo.isEmpty();
+    }
+
+    public synchronized void undo() {
+        if (!undo.isEmpty()) {
+            redo.push(operations);
+            operations = undo.pop();
+        }
+    }
+
+    public synchronized void redo() {
+        if (!redo.isEmpty()) {
+            undo.push(operations);
+            operations = redo.pop();
+        }
+    }
+
+    // Result of the current operations
+    public EditState evaluate() {
+        return evaluate(operations(), () -> false);
+    }
+
+    // Result of the given operations, starting from the longest prefix already cached. Safe to call
+    // from any thread. Returns null if cancelled reports true first.
+    public EditState evaluate(List<Operation> ops, BooleanSupplier cancelled) {
+        String[] keys = new String[ops.size() + 1];
+        keys[0] = "source";
+        for (int i = 0; i < ops.size(); i++) {
+            keys[i + 1] = keys[i] + " > " + ops.get(i);
+        }
+        int done = ops.size();
+        EditState state = null;
+        synchronized (this) {
+            for (; done > 0; done--) {
+                state = cache.get(keys[done]);
+                if (state != null) {
+                    break;
+                }
+            }
+            if (state == null) {
+                state = source;
+            }
+            hits += done;
+            misses += ops.size() - done;
+        }
+        for (int i = done; i < ops.size(); i++) {
+            if (cancelled.getAsBoolean()) {
+                return null;
+            }
+            state = ops.get(i).apply(state, cancelled);
+            if (state == null) {
+                return null;
+            }
+            put(keys[i + 1], state);
+        }
+        return state;
+    }
+
+    // The part of the image whose display can differ between the results of two operation lists:
+    // whatever the operations after their common prefix may change. A viewer keeps the rest.
+    public Rectangle changedRegion(List<Operation> before, List<Operation> after) {
+        Rectangle image = new Rectangle(0, 0, source.color().getWidth(), source.color().getHeight());
+        int common = 0;
+        while (common < before.size() && common < after.size() && before.get(common).equals(after.get(common))) {
+            common++;
+        }
+        Rectangle changed = changes(before, common, image);
+        Rectangle more = changes(after, common, image);
+        if (changed.isEmpty()) {
+            return more;
+        }
+        if (!more.isEmpty()) {
+            changed.add(more);
+        }
+        return changed;
+    }
+
+    private static Rectangle changes(List<Operation> ops, int from, Rectangle image) {
+        Rectangle region = image;
+        Rectangle changed = new Rectangle();
+        for (int i = 0; i < ops.size(); i++) {
+            Operation operation = ops.get(i);
+            if (i >= from) {
+                Rectangle area = operation.changes(region, image).intersection(image);
+                if (changed.isEmpty()) {
+                    changed = area;
+                } else if (!area.isEmpty()) {
+                    changed.add(area);
+                }
+            }
+            if (operation instanceof Region limit) {
+                region = limit.roi() == null ? image : limit.roi().bounds();
+            }
+        }
+        return changed.isEmpty() ? new Rectangle() : changed;
+    }
+
+    public synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    // Stage results served from the cache and computed, over all evaluations
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    private synchronized void put(String key, EditState state) {
+        EditState previous = cache.put(key, state);
+        if (previous != null) {
+            cachedBytes -= previous.ownBytes();
+        }
+        cachedBytes += state.ownBytes();
+        // Oldest first; a single state larger than the budget is dropped straight away
+        Iterator<EditState> it = cache.values().iterator();
+        while (cachedBytes > budgetBytes && it.hasNext()) {
+            cachedBytes -= it.next().ownBytes();
+            it.remove();
+        }
+    }
+
+    static long bytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    static long bytes(BitMask mask) {
+        return (long) mask.wordsPerRow() * mask.height() * 8;
+    }
+}
@@ -2,9 +2,10 @@ import javax.swing.*;
 import java.awt.*;
 import javax.swing.event.ChangeListener;
 
-// Interface for classes that can update images based on HSB settings
+// Interface for classes that can update images based on HSB settings.
+// adjusting is true while a slider is still being dragged, so a cheap preview is enough.
 interface ImageUpdater {
-    void updateImage(int hue, int saturation, int brightness);
+    void updateImage(int hue, int saturation, int brightness, boolean adjusting);
 }
 
 public class HSBControlForm extends JFrame {
@@ -57,11 +58,11 @@ public class HSBControlForm extends JFrame {
     // Helper method to add a change listener to a slider
     private void addChangeListener(JSlider slider) {
         slider.addChangeListener(e -> {
-            updateImage();
+            updateImage(slider.getValueIsAdjusting());
         });
     }
 
-    private void updateImage() {
-        imageUpdater.updateImage(hueSlider.getValue(), saturationSlider.getValue(), brightnessSlider.getValue());
+    private void updateImage(boolean adjusting) {
+        imageUpdater.updateImage(hueSlider.getValue(), saturationSlider.getValue(), brightnessSlider.getValue(), adjusting);
     }
 }
\ No newline at end of file
@@ -4,14 +4,47 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.imageio.ImageIO;
 
 public class ImageDisplayForm extends JFrame implements ImageUpdater {
-    private JLabel imageLabel;
+    private ImageViewport viewport;
     private BufferedImage originalImage;
-    private BufferedImage hsbAdjustedImage;
-    private BufferedImage processedImage;
-    private ImageProcessor imageProcessor;
+    // The edits applied to originalImage; results of every stage are cached by the pipeline
+    private EditPipeline pipeline;
+    // Display-sized copy of the original; drives the HSB preview while a slider is dragged
+    private BufferedImage previewImage;
+    private ImageProcessor previewProcessor;
+    private JButton btnUndo;
+    private JButton btnRedo;
+    private JButton btnPrevious;
+    private JButton btnNext;
+    // Dropped and selected images, decoded in the background, with a thumbnail strip to switch between them
+    private final IngestQueue queue = new IngestQueue(new QueueListener());
+    private final DefaultListModel<IngestQueue.Entry> queueModel = new DefaultListModel<>();
+    private final JList<IngestQueue.Entry> queueStrip = new JList<>(queueModel);
+    private JScrollPane queueScroll;
+    private final RenderScheduler<RenderedFrame> hsbRenderer = new RenderScheduler<>("hsb-render", this::showFrame, this::discardFrame);
+
+    // Save dialog choices, from fast and large to slow and small, and their Deflater levels
+    private static final String[] COMPRESSION_CHOICES = {"Fast", "Balanced", "Smallest"};
+    private static final int[] COMPRESSION_LEVELS = {1, 6, 9};
+
+    // A result prepared off the EDT: either the full-resolution image with a pyramid whose visible
+    // tiles are already built and the operations it shows, or a display-sized preview while a slider is dragged
+    private record RenderedFrame(BufferedImage image, ImagePyramid pyramid, List<EditPipeline.Operation> operations,
+                                 BufferedImage preview) {
+    }
+
+    // The operations behind the pyramid on screen, so the next render knows which tiles it changes
+    private List<EditPipeline.Operation> shownOperations = List.of();
+    // The slider preview on screen. Previews are leased from the buffer pool, so dragging reuses the
+    // same few images; one goes back once the viewport has moved on from it.
+    private BufferedImage shownPreview;
 
     public ImageDisplayForm() {
         setTitle("Image Display");
@@ -20,9 +53,22 @@ public class ImageDisplayForm extends JFrame implements ImageUpdater {
         setLocationRelativeTo(null);
         setResizable(false);
 
-        imageLabel = new JLabel("", JLabel.CENTER);
-        imageLabel.setVerticalAlignment(JLabel.CENTER);
-        getContentPane().add(imageLabel, BorderLayout.CENTER);
+        viewport = new ImageViewport();
+        getContentPane().add(viewport, BorderLayout.CENTER);
+
+        queueStrip.setLayoutOrientation(JList.HORIZONTAL_WRAP);
+        queueStrip.setVisibleRowCount(1);
+        queueStrip.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        queueStrip.setCellRenderer(new ThumbnailRenderer());
+        queueStrip.addListSelectionListener(e -> {
+            int index = queueStrip.getSelectedIndex();
+            if (!e.getValueIsAdjusting() && index >= 0 && index != queue.current()) {
+                queue.select(index);
+            }
+        });
+        queueScroll = new JScrollPane(queueStrip, JScrollPane.VERTICAL_SCROLLBAR_NEVER, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+        queueScroll.setVisible(false);
+        getContentPane().add(queueScroll, BorderLayout.NORTH);
 
         JPanel panelButtons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         JButton btnAdjustSaturation = new JButton("Adjust HSB");
@@ -31,93 +77,297 @@ public class ImageDisplayForm extends JFrame implements ImageUpdater {
         JButton btnDetectSquares = new JButton("Outline");
         btnDetectSquares.addActionListener(e -> detectSquares());
 
+        btnUndo = new JButton("Undo");
+        btnUndo.addActionListener(e -> undo());
+
+        btnRedo = new JButton("Redo");
+        btnRedo.addActionListener(e -> redo());
+
         JButton btnSave = new JButton("Save");
         btnSave.addActionListener(e -> saveImage());
 
+        btnPrevious = new JButton("Previous");
+        btnPrevious.addActionListener(e -> queue.previous());
+
+        btnNext = new JButton("Next");
+        btnNext.addActionListener(e -> queue.next());
+
+        panelButtons.add(btnPrevious);
+        panelButtons.add(btnNext);
+        panelButtons.add(btnUndo);
+        panelButtons.add(btnRedo);
         panelButtons.add(btnAdjustSaturation);
         panelButtons.add(btnDetectSquares);
         panelButtons.add(btnSave);
+        updateHistoryButtons();
+        updateQueueControls();
         getContentPane().add(panelButtons, BorderLayout.SOUTH);
     }
 
+    // Queues images for viewing; the first one is shown as soon as it is decoded if nothing is shown yet
+    public void enqueue(List<File> files) {
+        queue.addAll(files);
+    }
+
+    private void updateQueueControls() {
+        btnPrevious.setVisible(queueModel.size() > 1);
+        btnNext.setVisible(queueModel.size() > 1);
+        btnPrevious.setEnabled(queue.hasPrevious());
+        btnNext.setEnabled(queue.hasNext());
+        if (queueScroll.isVisible() != queueModel.size() > 1) {
+            queueScroll.setVisible(queueModel.size() > 1);
+            revalidate();
+        }
+    }
+
+    private class QueueListener implements IngestQueue.Listener {
+        @Override
+        public void queueChanged() {
+            for (int i = queueModel.size(); i < queue.size(); i++) {
+                queueModel.addElement(queue.get(i));
+            }
+            queueStrip.repaint();
+            updateQueueControls();
+        }
+
+        @Override
+        public void show(int index, IngestQueue.Entry entry, BufferedImage image) {
+            queueStrip.setSelectedIndex(index);
+            queueStrip.ensureIndexIsVisible(index);
+            updateQueueControls();
+            if (image == null) {
+                JOptionPane.showMessageDialog(ImageDisplayForm.this, "Cannot open " + entry.file().getName() + ": " + entry.error(),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            setTitle("Image Display - " + entry.file().getName());
+            displayImage(image);
+        }
+    }
+
+    private static class ThumbnailRenderer extends DefaultListCellRenderer {
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+            IngestQueue.Entry entry = (IngestQueue.Entry) value;
+            JLabel label = (JLabel) super.getListCellRendererComponent(list, null, index, isSelected, cellHasFocus);
+            label.setHorizontalAlignment(SwingConstants.CENTER);
+            label.setPreferredSize(new Dimension(IngestQueue.THUMBNAIL_SIZE + 8, IngestQueue.THUMBNAIL_SIZE + 8));
+            label.setToolTipText(entry.file().getName());
+            if (entry.state() == IngestQueue.State.FAILED) {
+                label.setText("Failed");
+            } else if (entry.thumbnail() != null) {
+                label.setIcon(new ImageIcon(entry.thumbnail()));
+            } else {
+                label.setText("...");
+            }
+            return label;
+        }
+    }
+
+    // Outlines are drawn on top of the current HSB adjustment, inside the selection if there is one
     private void detectSquares() {
-        if (originalImage != null) {
-            processedImage = ObjectOutline.detectObjects(deepCopy(originalImage));
-            updateImageDisplay(processedImage);
+        if (pipeline != null) {
+            pipeline.setAll(EditPipeline.outlineStages(selectionRoi()));
+            refresh();
         }
     }
 
-    private BufferedImage deepCopy(BufferedImage bi) {
-        int width = bi.getWidth();
-        int height = bi.getHeight();
-        int type = bi.getType();
-        BufferedImage newImage = new BufferedImage(width, height, type);
-        Graphics2D g = newImage.createGraphics();
-        g.drawImage(bi, 0, 0, null);
-        g.dispose();
-        return newImage;
+    private void undo() {
+        if (pipeline != null) {
+            pipeline.undo();
+            refresh();
+        }
+    }
+
+    private void redo() {
+        if (pipeline != null) {
+            pipeline.redo();
+            refresh();
+        }
+    }
+
+    private void updateHistoryButtons() {
+        btnUndo.setEnabled(pipeline != null && pipeline.canUndo());
+        btnRedo.setEnabled(pipeline != null && pipeline.canRedo());
+    }
+
+    // Renders the current operations off the EDT; stages whose inputs and parameters are unchanged
+    // come straight from the pipeline's cache
+    private void refresh() {
+        updateHistoryButtons();
+        EditPipeline edits = pipeline;
+        List<EditPipeline.Operation> operations = edits.operations();
+        ImagePyramid shown = viewport.getPyramid();
+        List<EditPipeline.Operation> shownOps = shownOperations;
+        hsbRenderer.submit(cancelled -> {
+            EditPipeline.EditState state = edits.evaluate(operations, cancelled);
+            if (state == null) {
+                return null;
+            }
+            BufferedImage result = state.display();
+            // Only tiles the changed operations can reach are dirty, e.g. those under an edited region;
+            // the others are shared with the pyramid on screen. Only the visible ones are built now.
+            ImagePyramid pyramid = shown == null ? new ImagePyramid(result)
+                    : shown.withImage(result, edits.changedRegion(shownOps, operations));
+            viewport.prepare(pyramid);
+            return new RenderedFrame(result, pyramid, operations, null);
+        });
     }
 
     public void displayImage(File imageFile) {
         try {
-            originalImage = ImageIO.read(imageFile);
-            hsbAdjustedImage = deepCopy(originalImage);
-            imageProcessor = new ImageProcessor(hsbAdjustedImage);
-            updateImageDisplay(originalImage);
+            displayImage(ImageIO.read(imageFile));
         } catch (IOException e) {
             System.out.println("Error loading image: " + e.getMessage());
         }
     }
 
-    private void updateImageDisplay(BufferedImage image) {
-        Image scaledImage = scaleImageToFitForm(image);
-        ImageIcon icon = new ImageIcon(scaledImage);
-        imageLabel.setIcon(icon);
-        imageLabel.revalidate();
-        imageLabel.repaint();
+    public void displayImage(BufferedImage image) {
+        hsbRenderer.cancel(); // Pending renders belong to the previous image
+        originalImage = image;
+        // No stage writes to its input, so the decoded image can be shared instead of copied
+        pipeline = new EditPipeline(originalImage);
+        previewImage = scaleImageToFitForm(originalImage);
+        if (previewProcessor != null) {
+            previewProcessor.release();
+        }
+        // Renders on every slider tick, so its colour table is worth keeping
+        previewProcessor = new ImageProcessor(previewImage, true);
+        viewport.setImage(originalImage);
+        shownOperations = List.of();
+        updateHistoryButtons();
     }
 
-    private Image scaleImageToFitForm(BufferedImage image) {
-        int formWidth = getWidth() - 20;
-        int formHeight = getHeight() - 120;
-        int imageWidth = image.getWidth();
-        int imageHeight = image.getHeight();
+    private void showFrame(RenderedFrame frame) {
+        BufferedImage previous = shownPreview;
+        if (frame.image() != null) {
+            viewport.setPyramid(frame.pyramid());
+            shownOperations = frame.operations();
+            shownPreview = null;
+        } else {
+            viewport.setPreview(frame.preview());
+            shownPreview = frame.preview();
+        }
+        if (previous != null && previous != shownPreview) {
+            BufferPool.shared().release(previous);
+        }
+    }
+
+    // A frame that was overtaken before reaching the screen; its preview was leased and goes back.
+    // Full-resolution images come from the pipeline's cache and are left to it.
+    private void discardFrame(RenderedFrame frame) {
+        if (frame.preview() != null) {
+            BufferPool.shared().release(frame.preview());
+        }
+    }
 
-        double scale = Math.min((double) formWidth / imageWidth, (double) formHeight / imageHeight);
-        int scaledWidth = (int) (imageWidth * scale);
-        int scaledHeight = (int) (imageHeight * scale);
+    // The selected part of the image, or null to edit all of it
+    private Roi selectionRoi() {
+        Rectangle selection = viewport.getSelection();
+        if (selection == null) {
+            return null;
+        }
+        Roi roi = Roi.rectangle(selection, originalImage.getWidth(), originalImage.getHeight());
+        return roi.isEmpty() ? null : roi;
+    }
 
-        return image.getScaledInstance(scaledWidth, scaledHeight, Image.SCALE_SMOOTH);
+    private BufferedImage scaleImageToFitForm(BufferedImage image) {
+        int formWidth = getWidth() - 20;
+        int formHeight = getHeight() - 120;
+        return ImageScaler.scaleToFit(image, formWidth, formHeight);
     }
 
     private void saveImage() {
-        BufferedImage imageToSave = processedImage != null ? processedImage : hsbAdjustedImage;
-        if (imageToSave != null) {
-            JFileChooser fileChooser = new JFileChooser();
-            fileChooser.setDialogTitle("Save Image");
-            fileChooser.setFileFilter(new FileNameExtensionFilter("PNG images", "png"));
-            int userSelection = fileChooser.showSaveDialog(this);
-            if (userSelection == JFileChooser.APPROVE_OPTION) {
-                File fileToSave = fileChooser.getSelectedFile();
-                try {
-                    ImageIO.write(imageToSave, "PNG", new File(fileToSave.getAbsolutePath() + ".png"));
-                    JOptionPane.showMessageDialog(this, "Image saved as: " + fileToSave.getName(), "Save Image", JOptionPane.INFORMATION_MESSAGE);
-                } catch (IOException e) {
-                    JOptionPane.showMessageDialog(this, "Error saving image: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-                }
-            }
-        } else {
+        if (pipeline == null) {
             JOptionPane.showMessageDialog(this, "No image to save", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
         }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Save Image");
+        fileChooser.setFileFilter(new FileNameExtensionFilter("PNG images", "png"));
+        JComboBox<String> compression = new JComboBox<>(COMPRESSION_CHOICES);
+        compression.setSelectedIndex(1);
+        JPanel accessory = new JPanel(new BorderLayout());
+        accessory.add(new JLabel("Compression"), BorderLayout.NORTH);
+        accessory.add(compression, BorderLayout.SOUTH);
+        fileChooser.setAccessory(accessory);
+        int userSelection = fileChooser.showSaveDialog(this);
+        if (userSelection != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File fileToSave = fileChooser.getSelectedFile();
+        File target = fileToSave.getName().toLowerCase().endsWith(".png") ? fileToSave
+                : new File(fileToSave.getAbsolutePath() + ".png");
+        ImageExporter.Settings settings = ImageExporter.Settings.defaults()
+                .withCompressionLevel(COMPRESSION_LEVELS[compression.getSelectedIndex()]);
+
+        // Evaluating the edits and encoding both happen in the background; the monitor pops up if
+        // they take more than a moment and lets the user cancel
+        ProgressMonitor monitor = new ProgressMonitor(this, "Saving " + target.getName(), null, 0, 1000);
+        monitor.setMillisToDecideToPopup(200);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        EditPipeline edits = pipeline;
+        List<EditPipeline.Operation> operations = edits.operations();
+        CompletableFuture
+                .supplyAsync(() -> {
+                    // Only previews may have been shown so far; evaluating computes whatever is not cached yet
+                    EditPipeline.EditState state = edits.evaluate(operations, cancelled::get);
+                    if (state == null) {
+                        throw new CancellationException("Export cancelled");
+                    }
+                    return state.display();
+                }, ComputePool.pool())
+                .thenCompose(image -> ImageExporter.exportAsync(image, target, settings,
+                        fraction -> SwingUtilities.invokeLater(() -> {
+                            monitor.setProgress((int) (fraction * 1000));
+                            if (monitor.isCanceled()) {
+                                cancelled.set(true);
+                            }
+                        }),
+                        cancelled::get))
+                .whenComplete((file, error) -> SwingUtilities.invokeLater(() -> {
+                    monitor.close();
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    if (cause == null) {
+                        JOptionPane.showMessageDialog(this, "Image saved as: " + file.getName(), "Save Image", JOptionPane.INFORMATION_MESSAGE);
+                    } else if (!(cause instanceof CancellationException)) {
+                        JOptionPane.showMessageDialog(this, "Error saving image: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }));
     }
 
     @Override
-    public void updateImage(int hue, int saturation, int brightness) {
-        if (imageProcessor != null) {
-            imageProcessor.updateHSB(hue, saturation, brightness);
-            hsbAdjustedImage = imageProcessor.getCurrentImage();
-            updateImageDisplay(hsbAdjustedImage);
+    public void updateImage(int hue, int saturation, int brightness, boolean adjusting) {
+        if (pipeline == null) {
+            return;
         }
+        // Slider events are coalesced; only the newest finished frame reaches the screen.
+        // With a selection only that region is adjusted.
+        Roi roi = selectionRoi();
+        if (adjusting) {
+            // While dragging, only the display-sized proxy is adjusted, so a frame costs the same
+            // whatever the size of the source
+            ImageProcessor preview = previewProcessor;
+            Roi previewRoi = roi == null ? null : roi.scaled(originalImage.getWidth(), originalImage.getHeight(),
+                    previewImage.getWidth(), previewImage.getHeight());
+            BufferedImage proxy = previewImage;
+            hsbRenderer.submit(cancelled -> {
+                BufferedImage destination = BufferPool.shared().lease(proxy.getWidth(), proxy.getHeight(), BufferedImage.TYPE_INT_RGB);
+                BufferedImage adjusted = preview.render(hue, saturation, brightness, previewRoi, destination, cancelled);
+                if (adjusted == null) {
+                    BufferPool.shared().release(destination);
+                    return null;
+                }
+                return new RenderedFrame(null, null, null, adjusted);
+            });
+        } else {
+            pipeline.set(new EditPipeline.Hsb(hue, saturation, brightness, roi));
+            refresh();
+        }
+    }
+
+    public RenderScheduler.Metrics getRenderMetrics() {
+        return hsbRenderer.getMetrics();
     }
 
     public static void main(String[] args) {
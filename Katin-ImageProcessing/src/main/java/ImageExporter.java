@@ -0,0 +1,234 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+
+// Writes images to disk with a compression/speed trade-off, either on the caller's thread (batch
+// mode) or on a background thread with progress and cancellation (the editor). Large PNGs go through
+// ParallelPngEncoder; everything else through ImageIO, with the level passed on in its ImageWriteParam.
+// The file is written under a temporary name and renamed when complete, so a failed or cancelled
+// export never leaves a truncated file behind.
+public final class ImageExporter {
+    // Images from this size up are worth spreading over the compute pool, when it has more than one thread
+    static final long PARALLEL_PIXELS = 1L << 20;
+
+    public enum Encoder { AUTO, IMAGEIO, PARALLEL }
+
+    // compressionLevel: 0 stores (fastest, largest) up to 9 (slowest, smallest), -1 for the encoder's default.
+    // Defaults come from -Dimageedit.exportLevel and -Dimageedit.pngEncoder=auto|imageio|parallel.
+    public record Settings(int compressionLevel, Encoder encoder) {
+        public Settings {
+            if (compressionLevel < -1 || compressionLevel > 9) {
+                throw new IllegalArgumentException("Compression level must be -1 to 9: " + compressionLevel);
+            }
+        }
+
+        public static Settings defaults() {
+            return new Settings(Integer.getInteger("imageedit.exportLevel", -1),
+                    Encoder.valueOf(System.getProperty("imageedit.pngEncoder", "auto").toUpperCase(Locale.ROOT)));
+        }
+
+        public Settings withCompressionLevel(int level) {
+            return new Settings(level, encoder);
+        }
+
+        public Settings withEncoder(Encoder value) {
+            return new Settings(compressionLevel, value);
+        }
+    }
+
+    // One export at a time in the background; the encoders parallelize internally
+    private static final ExecutorService background = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "image-export");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ImageExporter() {
+    }
+
+    // Exports on the background thread. The future completes with the target, or exceptionally with
+    // the IOException or a CancellationException.
+    public static CompletableFuture<File> exportAsync(BufferedImage image, File target, Settings settings,
+                                                      DoubleConsumer progress, BooleanSupplier cancelled) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                export(image, target, settings, progress, cancelled);
+                return target;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, background);
+    }
+
+    public static void export(BufferedImage image, File target, Settings settings) throws IOException {
+        export(image, target, settings, fraction -> { }, () -> false);
+    }
+
+    // The format follows the target's extension, PNG when it has none ImageIO knows
+    public static void export(BufferedImage image, File target, Settings settings, DoubleConsumer progress,
+                              BooleanSupplier cancelled) throws IOException {
+        String format = formatName(target);
+        File partial = partialFile(target);
+        boolean done = false;
+        try (StageTimer timer = StageTimer.start("export", image)) {
+            if (format.equals("png") && useParallel(image, settings.encoder())) {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(partial), 1 << 16)) {
+                    ParallelPngEncoder.write(image, out, settings.compressionLevel(), progress, cancelled);
+                }
+            } else {
+                writeWithImageIO(image, format, partial, settings.compressionLevel(), progress, cancelled);
+            }
+            replace(partial, target);
+            done = true;
+        } finally {
+            if (!done) {
+                partial.delete();
+            }
+        }
+    }
+
+    // Writes PNG to a stream, e.g. a network response, with the same choice of encoder as a file export.
+    // The stream is flushed but left open.
+    public static void writePng(BufferedImage image, OutputStream out, Settings settings) throws IOException {
+        try (StageTimer timer = StageTimer.start("export", image)) {
+            if (useParallel(image, settings.encoder())) {
+                ParallelPngEncoder.write(image, out, settings.compressionLevel(), fraction -> { }, () -> false);
+            } else {
+                writeWithImageIO(image, "png", out, settings.compressionLevel(), fraction -> { }, () -> false);
+            }
+            out.flush();
+        }
+    }
+
+    private static boolean useParallel(BufferedImage image, Encoder encoder) {
+        if (encoder == Encoder.IMAGEIO || !ParallelPngEncoder.supports(image)) {
+            return false;
+        }
+        return encoder == Encoder.PARALLEL
+                || ComputePool.getParallelism() > 1 && (long) image.getWidth() * image.getHeight() >= PARALLEL_PIXELS;
+    }
+
+    // output is a File or an OutputStream
+    private static void writeWithImageIO(BufferedImage image, String format, Object output, int level,
+                                         DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No " + format.toUpperCase(Locale.ROOT) + " writer available");
+        }
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(output)) {
+            if (out == null) {
+                throw new IOException("Cannot write " + output);
+            }
+            writer.setOutput(out);
+            writer.addIIOWriteProgressListener(new ProgressListener(progress, cancelled));
+            writer.write(null, new IIOImage(image, null, null), writeParam(writer, level));
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException("Export cancelled"); // The writer aborted part way
+            }
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // Maps the level onto a lossless writer's compression quality; PNG's writer turns quality q back
+    // into Deflater level 9 - round(9q). Lossy formats keep their default quality.
+    static ImageWriteParam writeParam(ImageWriter writer, int level) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteProgressive()) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DISABLED); // PNG would otherwise interlace
+        }
+        if (level >= 0 && param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null && param.getCompressionTypes() != null) {
+                param.setCompressionType(param.getCompressionTypes()[0]);
+            }
+            if (param.isCompressionLossless()) {
+                param.setCompressionQuality((9 - level) / 9f);
+            } else {
+                param.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
+            }
+        }
+        return param;
+    }
+
+    private static String formatName(File target) {
+        String name = target.getName();
+        int dot = name.lastIndexOf('.');
+        String extension = dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return ImageIO.getImageWritersBySuffix(extension).hasNext() ? extension : "png";
+    }
+
+    // Where a result is written before it is complete, so an interrupted run never leaves a truncated
+    // file that --skip-existing or a viewer would take as done
+    static File partialFile(File target) {
+        return new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".part");
+    }
+
+    static void replace(File partial, File target) throws IOException {
+        if (!partial.renameTo(target) && !(target.delete() && partial.renameTo(target))) {
+            throw new IOException("Cannot rename " + partial + " to " + target);
+        }
+    }
+
+    private static final class ProgressListener implements IIOWriteProgressListener {
+        private final DoubleConsumer progress;
+        private final BooleanSupplier cancelled;
+
+        ProgressListener(DoubleConsumer progress, BooleanSupplier cancelled) {
+            this.progress = progress;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public void imageProgress(ImageWriter source, float percentageDone) {
+            progress.accept(percentageDone / 100.0);
+            if (cancelled.getAsBoolean()) {
+                source.abort();
+            }
+        }
+
+        @Override
+        public void imageComplete(ImageWriter source) {
+            progress.accept(1.0);
+        }
+
+        @Override
+        public void imageStarted(ImageWriter source, int imageIndex) {
+        }
+
+        @Override
+        public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {
+        }
+
+        @Override
+        public void thumbnailProgress(ImageWriter source, float percentageDone) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageWriter source) {
+        }
+
+        @Override
+        public void writeAborted(ImageWriter source) {
+        }
+    }
+}
@@ -1,14 +1,19 @@
 import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.io.File;
+import java.util.List;
 
 public class ImageFileSelectionDialog {
 
-    public File getSelectedFile() {
+    // The chosen files, several at once with Ctrl or Shift; empty if cancelled
+    public List<File> getSelectedFiles() {
         JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setMultiSelectionEnabled(true);
+        fileChooser.setFileFilter(new FileNameExtensionFilter("Images", "png", "jpg", "jpeg", "bmp", "gif"));
         int result = fileChooser.showOpenDialog(null);
         if (result == JFileChooser.APPROVE_OPTION) {
-            return fileChooser.getSelectedFile();
+            return List.of(fileChooser.getSelectedFiles());
         }
-        return null;
+        return List.of();
     }
 }
@@ -1,67 +1,158 @@
-import java.awt.*;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.function.BooleanSupplier;
 
 public class ImageProcessor {
     private BufferedImage originalImage;
     private BufferedImage currentImage;
+    private ColorTransform.Accuracy accuracy = ColorTransform.Accuracy.AUTO;
+
+    // The compiled HSB table is kept while the parameters stay the same
+    private int tableHue;
+    private int tableSaturation;
+    private int tableBrightness;
+    private ColorTransform.Table table;
+    // Set for processors that render many times, such as the slider preview; only those may get a
+    // full 64 MB lookup table from AUTO, which a single render would fill and throw away
+    private final boolean reusesTable;
 
     public ImageProcessor(BufferedImage originalImage) {
+        this(originalImage, false);
+    }
+
+    public ImageProcessor(BufferedImage originalImage, boolean reusesTable) {
         this.originalImage = originalImage;
         this.currentImage = originalImage;
+        this.reusesTable = reusesTable;
     }
 
     public BufferedImage getCurrentImage() {
         return currentImage;
     }
 
+    public synchronized void setAccuracy(ColorTransform.Accuracy accuracy) {
+        this.accuracy = accuracy;
+        releaseTable();
+    }
+
     public void updateHSB(int hue, int saturation, int brightness) {
-        int width = originalImage.getWidth();
-        int height = originalImage.getHeight();
-        currentImage = processImage(originalImage, hue, saturation, brightness, width, height);
+        currentImage = render(hue, saturation, brightness, () -> false);
+    }
+
+    // Adjusts only the pixels inside roi; the rest of the image is the original
+    public void updateHSB(int hue, int saturation, int brightness, Roi roi) {
+        currentImage = render(hue, saturation, brightness, roi, () -> false);
     }
 
-    private BufferedImage processImage(BufferedImage originalImage, int hue, int saturation, int brightness, int width, int height) {
-        BufferedImage processedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-
-        // Multithreading for faster processing
-        int processors = Runtime.getRuntime().availableProcessors();
-        int tasksPerProcessor = height / processors;
-
-        // Array to store threads for later joining
-        Thread[] threads = new Thread[processors];
-        for (int i = 0; i < processors; i++) {
-            int startRow = i * tasksPerProcessor;
-            int endRow = (i == processors - 1) ? height : (i + 1) * tasksPerProcessor;
-
-            // Create a thread for processing a portion of the image
-            threads[i] = new Thread(() -> {
-                for (int y = startRow; y < endRow; y++) {
-                    for (int x = 0; x < width; x++) {
-                        int rgb = originalImage.getRGB(x, y);
-                        float[] hsb = Color.RGBtoHSB((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, null);
-
-                        // Adjust HSB values
-                        hsb[0] = (hsb[0] + (hue / 360.0f)) % 1.0f;
-                        hsb[1] = Math.min(hsb[1] * (saturation / 100.0f), 1.0f);
-                        hsb[2] = Math.min(hsb[2] * (brightness / 100.0f), 1.0f);
-
-                        rgb = Color.HSBtoRGB(hsb[0], hsb[1], hsb[2]);
-                        processedImage.setRGB(x, y, rgb);
-                    }
+    // Computes the adjusted image without changing the current one.
+    // Returns null if cancelled reports true before all tiles are done.
+    // Renders of one processor run one at a time since they share the compiled table.
+    public synchronized BufferedImage render(int hue, int saturation, int brightness, BooleanSupplier cancelled) {
+        return render(hue, saturation, brightness, null, newImage(), cancelled);
+    }
+
+    // Like render, but only the pixels inside roi (null for all) are adjusted and the others are copied
+    // from the original. Only the row tiles crossing the ROI are transformed, so the cost follows its area.
+    public synchronized BufferedImage render(int hue, int saturation, int brightness, Roi roi, BooleanSupplier cancelled) {
+        return render(hue, saturation, brightness, roi, newImage(), cancelled);
+    }
+
+    // Renders into destination, a TYPE_INT_RGB image the size of the original such as one leased from a
+    // BufferPool, and returns it. Every pixel is written. On cancellation the result is null and
+    // destination is left half done, still the caller's to release.
+    public synchronized BufferedImage render(int hue, int saturation, int brightness, Roi roi, BufferedImage destination,
+                                             BooleanSupplier cancelled) {
+        int width = originalImage.getWidth();
+        int height = originalImage.getHeight();
+        if (destination.getWidth() != width || destination.getHeight() != height
+                || destination.getType() != BufferedImage.TYPE_INT_RGB || !PixelAccess.isCompact(destination)) {
+            throw new IllegalArgumentException("Destination must be a full " + width + "x" + height + " TYPE_INT_RGB image");
+        }
+        if (roi == null) {
+            try (StageTimer timer = StageTimer.start("hsb", width, height)) {
+                return processImage(originalImage, hue, saturation, brightness, width, height, destination, cancelled);
+            }
+        }
+        Rectangle bounds = roi.bounds();
+        try (StageTimer timer = StageTimer.start("hsb", bounds.width, bounds.height)) {
+            int[] target = PixelAccess.rgb(destination);
+            int[] source;
+            if (PixelAccess.isCompactBgr(originalImage)) {
+                // BGR is packed straight into the result and the ROI transformed in place, with no int copy
+                PixelAccess.bgrPixels(bgrData(originalImage), 0, target, 0, target.length);
+                source = target;
+            } else {
+                source = PixelAccess.rgb(originalImage);
+                System.arraycopy(source, 0, target, 0, target.length);
+            }
+            if (bounds.isEmpty()) {
+                return destination;
+            }
+            ColorTransform.Table transform = transformFor(hue, saturation, brightness, (long) bounds.width * bounds.height);
+            ComputePool.forEachTile(bounds.height, ComputePool.tileRows(bounds.width), (startRow, endRow) -> {
+                if (cancelled.getAsBoolean()) {
+                    return;
                 }
+                roi.forEachSpan(bounds.y + startRow, bounds.y + endRow,
+                        (y, startX, endX) -> transform.apply(source, target, y * width + startX, y * width + endX));
             });
-            threads[i].start(); // Start the thread
+            return cancelled.getAsBoolean() ? null : destination;
         }
+    }
+
+    private BufferedImage newImage() {
+        return new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+    }
+
+    private static byte[] bgrData(BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private BufferedImage processImage(BufferedImage originalImage, int hue, int saturation, int brightness, int width, int height,
+                                       BufferedImage processedImage, BooleanSupplier cancelled) {
+        int[] target = PixelAccess.rgb(processedImage);
+        // JPEG-decoded BGR is packed into the result a tile at a time and transformed in place,
+        // instead of first being copied whole into a packed int array
+        byte[] bgr = PixelAccess.isCompactBgr(originalImage) ? bgrData(originalImage) : null;
+        int[] source = bgr != null ? target : PixelAccess.rgb(originalImage);
+        ColorTransform.Table transform = transformFor(hue, saturation, brightness, (long) width * height);
 
-        // Wait for all threads to finish processing
-        for (Thread thread : threads) {
-            try {
-                thread.join(); // Wait for the thread to complete
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        // Split the image into row tiles and let the shared pool spread them over the cores
+        ComputePool.forEachTile(height, ComputePool.tileRows(width), (startRow, endRow) -> {
+            if (cancelled.getAsBoolean()) {
+                return; // Stale request, skip the remaining tiles
             }
+            if (bgr != null) {
+                PixelAccess.bgrPixels(bgr, startRow * width, target, startRow * width, (endRow - startRow) * width);
+            }
+            transform.apply(source, target, startRow * width, endRow * width);
+        });
+
+        return cancelled.getAsBoolean() ? null : processedImage;
+    }
+
+    private ColorTransform.Table transformFor(int hue, int saturation, int brightness, long pixels) {
+        // Compared field by field rather than through a string key, which would allocate on every render
+        if (table == null || hue != tableHue || saturation != tableSaturation || brightness != tableBrightness) {
+            releaseTable();
+            table = ColorTransform.hsb(hue, saturation, brightness).compile(accuracy, pixels, reusesTable);
+            tableHue = hue;
+            tableSaturation = saturation;
+            tableBrightness = brightness;
         }
+        return table;
+    }
+
+    // Gives the compiled table back for reuse; a later render compiles a new one
+    public synchronized void release() {
+        releaseTable();
+    }
 
-        return processedImage;
+    private void releaseTable() {
+        if (table != null) {
+            table.release();
+            table = null;
+        }
     }
 }
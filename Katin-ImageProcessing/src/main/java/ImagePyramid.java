@@ -0,0 +1,277 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Mipmap pyramid of an image, cut into square tiles. Level 0 is the image itself and is drawn straight
+// from it; level k is half the size of level k - 1, each pixel the average of a 2x2 block. Tiles of the
+// reduced levels are built on first use from the four tiles below them and kept in an LRU cache with a
+// byte budget, so memory stays bounded however large the image is.
+public final class ImagePyramid {
+    public static final int TILE_SIZE = 256;
+    static final long DEFAULT_BUDGET_BYTES = Long.getLong("imageedit.pyramidMB", 96) << 20;
+
+    private final BufferedImage image;
+    private final int levels;
+    private final long budgetBytes;
+    private final boolean alpha;
+    // Backing pixels when the image is a plain int image, so level 1 can read them without getRGB
+    private final int[] pixels;
+    private final LinkedHashMap<Long, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+
+    public ImagePyramid(BufferedImage image) {
+        this(image, DEFAULT_BUDGET_BYTES);
+    }
+
+    public ImagePyramid(BufferedImage image, long budgetBytes) {
+        this.image = image;
+        this.budgetBytes = budgetBytes;
+        this.alpha = image.getColorModel().hasAlpha();
+        int type = image.getType();
+        boolean intBacked = (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) && PixelAccess.isCompact(image);
+        this.pixels = intBacked ? PixelAccess.rgb(image) : null;
+        int count = 1;
+        while (Math.max(image.getWidth(), image.getHeight()) >> (count - 1) > TILE_SIZE) {
+            count++;
+        }
+        this.levels = count;
+    }
+
+    public BufferedImage image() {
+        return image;
+    }
+
+    public int width() {
+        return image.getWidth();
+    }
+
+    public int height() {
+        return image.getHeight();
+    }
+
+    public int levels() {
+        return levels;
+    }
+
+    public int levelWidth(int level) {
+        return Math.max(1, ceilShift(image.getWidth(), level));
+    }
+
+    public int levelHeight(int level) {
+        return Math.max(1, ceilShift(image.getHeight(), level));
+    }
+
+    // The coarsest level that still has at least one level pixel per screen pixel at this scale
+    public int levelFor(double scale) {
+        int level = 0;
+        while (level + 1 < levels && scale * (1 << (level + 1)) <= 1.0) {
+            level++;
+        }
+        return level;
+    }
+
+    // A pyramid for an edited version of the image (same size) that keeps every cached tile outside
+    // the dirty region of the source, so only the touched tiles are built again
+    public ImagePyramid withImage(BufferedImage edited, Rectangle dirty) {
+        if (edited == image) {
+            return this; // E.g. an undo back to a cached result
+        }
+        ImagePyramid next = new ImagePyramid(edited, budgetBytes);
+        if (edited.getWidth() != width() || edited.getHeight() != height()) {
+            return next;
+        }
+        synchronized (this) {
+            synchronized (next) {
+                for (Map.Entry<Long, BufferedImage> entry : tiles.entrySet()) {
+                    long key = entry.getKey();
+                    if (!sourceBounds(level(key), tileX(key), tileY(key)).intersects(dirty)) {
+                        next.tiles.put(key, entry.getValue());
+                        next.cachedBytes += bytes(entry.getValue());
+                    }
+                }
+            }
+        }
+        return next;
+    }
+
+    // Drops the cached tiles covering the given region of the source
+    public synchronized void invalidate(Rectangle region) {
+        Iterator<Map.Entry<Long, BufferedImage>> it = tiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, BufferedImage> entry = it.next();
+            long key = entry.getKey();
+            if (sourceBounds(level(key), tileX(key), tileY(key)).intersects(region)) {
+                cachedBytes -= bytes(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    // Tile (tileX, tileY) of a reduced level (level >= 1); edge tiles are smaller than TILE_SIZE
+    public BufferedImage tile(int level, int tileX, int tileY) {
+        if (level < 1 || level >= levels) {
+            throw new IllegalArgumentException("No reduced level " + level);
+        }
+        long key = key(level, tileX, tileY);
+        synchronized (this) {
+            BufferedImage cached = tiles.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // Built outside the lock, so several tiles can be built at once; a duplicate build is harmless
+        BufferedImage built = build(level, tileX, tileY);
+        synchronized (this) {
+            BufferedImage raced = tiles.get(key);
+            if (raced != null) {
+                return raced;
+            }
+            tiles.put(key, built);
+            cachedBytes += bytes(built);
+            evict();
+        }
+        return built;
+    }
+
+    // Builds, in parallel, the tiles of a level that cover the given region of the source, so
+    // painting them later only has to draw
+    public void prepare(int level, Rectangle sourceRegion) {
+        if (level < 1) {
+            return;
+        }
+        List<int[]> needed = new ArrayList<>();
+        Rectangle bounds = sourceRegion.intersection(new Rectangle(0, 0, width(), height()));
+        if (bounds.isEmpty()) {
+            return;
+        }
+        int span = TILE_SIZE << level;
+        for (int ty = bounds.y / span; ty <= (bounds.y + bounds.height - 1) / span; ty++) {
+            for (int tx = bounds.x / span; tx <= (bounds.x + bounds.width - 1) / span; tx++) {
+                needed.add(new int[]{tx, ty});
+            }
+        }
+        ComputePool.forEachTile(needed.size(), 1, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                tile(level, needed.get(i)[0], needed.get(i)[1]);
+            }
+        });
+    }
+
+    public synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    // The region of the source a tile covers
+    public Rectangle sourceBounds(int level, int tileX, int tileY) {
+        int span = TILE_SIZE << level;
+        return new Rectangle(tileX * span, tileY * span, span, span).intersection(new Rectangle(0, 0, width(), height()));
+    }
+
+    private BufferedImage build(int level, int tileX, int tileY) {
+        int width = Math.min(TILE_SIZE, levelWidth(level) - tileX * TILE_SIZE);
+        int height = Math.min(TILE_SIZE, levelHeight(level) - tileY * TILE_SIZE);
+        BufferedImage tile = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] target = PixelAccess.rgb(tile);
+
+        // The 2x2 blocks come from a (2 * width) x (2 * height) region of the level below
+        int belowWidth = level == 1 ? image.getWidth() : levelWidth(level - 1);
+        int belowHeight = level == 1 ? image.getHeight() : levelHeight(level - 1);
+        int x0 = tileX * TILE_SIZE * 2;
+        int y0 = tileY * TILE_SIZE * 2;
+        int regionWidth = Math.min(2 * width, belowWidth - x0);
+        int regionHeight = Math.min(2 * height, belowHeight - y0);
+        int[] region = level == 1 ? sourceRegion(x0, y0, regionWidth, regionHeight) : childRegion(level - 1, tileX, tileY, regionWidth, regionHeight);
+
+        for (int y = 0; y < height; y++) {
+            int r0 = 2 * y;
+            int r1 = Math.min(r0 + 1, regionHeight - 1);
+            for (int x = 0; x < width; x++) {
+                int c0 = 2 * x;
+                int c1 = Math.min(c0 + 1, regionWidth - 1);
+                target[y * width + x] = average(region[r0 * regionWidth + c0], region[r0 * regionWidth + c1],
+                        region[r1 * regionWidth + c0], region[r1 * regionWidth + c1]);
+            }
+        }
+        return tile;
+    }
+
+    private int[] sourceRegion(int x0, int y0, int width, int height) {
+        if (pixels == null) {
+            return image.getRGB(x0, y0, width, height, null, 0, width);
+        }
+        int[] region = new int[width * height];
+        int stride = image.getWidth();
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(pixels, (y0 + y) * stride + x0, region, y * width, width);
+        }
+        return region;
+    }
+
+    // The four tiles of the level below that a tile is made from, stitched into one region
+    private int[] childRegion(int childLevel, int tileX, int tileY, int width, int height) {
+        int[] region = new int[width * height];
+        for (int dy = 0; dy < 2; dy++) {
+            for (int dx = 0; dx < 2; dx++) {
+                int offsetX = dx * TILE_SIZE;
+                int offsetY = dy * TILE_SIZE;
+                if (offsetX >= width || offsetY >= height) {
+                    continue;
+                }
+                BufferedImage child = tile(childLevel, 2 * tileX + dx, 2 * tileY + dy);
+                int[] data = PixelAccess.rgb(child);
+                int childWidth = child.getWidth();
+                for (int y = 0; y < child.getHeight(); y++) {
+                    System.arraycopy(data, y * childWidth, region, (offsetY + y) * width + offsetX, childWidth);
+                }
+            }
+        }
+        return region;
+    }
+
+    private int average(int p0, int p1, int p2, int p3) {
+        int r = (((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF) + 2) >> 2;
+        int g = (((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF) + 2) >> 2;
+        int b = ((p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF) + 2) >> 2;
+        int value = r << 16 | g << 8 | b;
+        if (alpha) {
+            value |= ((p0 >>> 24) + (p1 >>> 24) + (p2 >>> 24) + (p3 >>> 24) + 2) >> 2 << 24;
+        }
+        return value;
+    }
+
+    private void evict() {
+        Iterator<BufferedImage> it = tiles.values().iterator();
+        while (cachedBytes > budgetBytes && it.hasNext()) {
+            cachedBytes -= bytes(it.next());
+            it.remove();
+        }
+    }
+
+    private static long bytes(BufferedImage tile) {
+        return (long) tile.getWidth() * tile.getHeight() * 4;
+    }
+
+    private static int ceilShift(int value, int shift) {
+        return (int) (((long) value + (1L << shift) - 1) >> shift);
+    }
+
+    private static long key(int level, int tileX, int tileY) {
+        return (long) level << 56 | (long) tileY << 28 | tileX;
+    }
+
+    private static int level(long key) {
+        return (int) (key >>> 56);
+    }
+
+    private static int tileY(long key) {
+        return (int) (key >>> 28) & 0xFFFFFFF;
+    }
+
+    private static int tileX(long key) {
+        return (int) key & 0xFFFFFFF;
+    }
+}
@@ -1,5 +1,6 @@
 import javax.swing.*;
 import java.io.File;
+import java.util.List;
 
 public class ImageSelectForm extends JFrame {
 
@@ -13,14 +14,14 @@ public class ImageSelectForm extends JFrame {
         setTitle("Image Select Form");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
-        JButton selectImageButton = new JButton("Select Image");
+        JButton selectImageButton = new JButton("Select Images");
         selectImageButton.addActionListener(e -> selectImage());
 
         JPanel buttonPanel = new JPanel();
         buttonPanel.add(selectImageButton);
 
         JPanel dropPanel = new DropPanel();
-        dropPanel.setBorder(BorderFactory.createTitledBorder("Drag and Drop Image Here"));
+        dropPanel.setBorder(BorderFactory.createTitledBorder("Drag and Drop Images Here"));
 
         setLayout(new BoxLayout(getContentPane(), BoxLayout.Y_AXIS));
         add(buttonPanel);
@@ -32,14 +33,15 @@ public class ImageSelectForm extends JFrame {
 
     private void selectImage() {
         ImageFileSelectionDialog fileSelectionDialog = new ImageFileSelectionDialog();
-        File selectedFile = fileSelectionDialog.getSelectedFile();
-        if (selectedFile != null) {
-            displayImage(selectedFile);
+        List<File> selectedFiles = fileSelectionDialog.getSelectedFiles();
+        if (!selectedFiles.isEmpty()) {
+            displayImages(selectedFiles);
         }
     }
 
-    void displayImage(File imageFile) {
-        imageDisplayForm.displayImage(imageFile);
+    // Decoding happens in the background; the display form shows each image once it is ready
+    void displayImages(List<File> imageFiles) {
+        imageDisplayForm.enqueue(imageFiles);
         imageDisplayForm.setVisible(true);
     }
 
@@ -0,0 +1,331 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+
+// Zoomable, pannable view of an ImagePyramid. Only the tiles inside the window are drawn, from the
+// pyramid level that matches the zoom, and the result is kept in an accelerated back buffer so plain
+// repaints (window exposure, other components) are a single blit.
+// Mouse wheel zooms around the cursor, dragging pans, double click fits the image to the window.
+// Shift+drag selects a rectangle of the image for region edits, shift+click clears it.
+public class ImageViewport extends JComponent {
+    private static final double ZOOM_STEP = 1.25;
+    private static final double MAX_SCALE = 32;
+
+    // Source pixel shown at the top-left corner of the component, and screen pixels per source pixel.
+    // Replaced as a whole so render threads can read a consistent snapshot.
+    private record View(double scale, double originX, double originY) {
+    }
+
+    private ImagePyramid pyramid;
+    // A display-sized stand-in, stretched over the image while the real pyramid is not ready yet
+    private BufferedImage preview;
+    private volatile View view = new View(1, 0, 0);
+    private boolean fitToWindow = true;
+    private VolatileImage backBuffer;
+    private boolean backBufferValid;
+    private Point dragStart;
+    private View dragView;
+    // In source pixels, null when nothing is selected
+    private Rectangle selection;
+    private boolean selecting;
+
+    public ImageViewport() {
+        setOpaque(true);
+        setBackground(Color.DARK_GRAY);
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                dragStart = e.getPoint();
+                dragView = view;
+                selecting = e.isShiftDown();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (selecting && dragStart != null && pyramid != null) {
+                    select(dragStart, e.getPoint());
+                } else if (dragStart != null && pyramid != null) {
+                    View start = dragView;
+                    setView(new View(start.scale(),
+                            start.originX() - (e.getX() - dragStart.x) / start.scale(),
+                            start.originY() - (e.getY() - dragStart.y) / start.scale()));
+                }
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                dragStart = null;
+            }
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.isShiftDown()) {
+                    setSelection(null);
+                } else if (e.getClickCount() == 2) {
+                    fitToWindow();
+                }
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                zoom(Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()), e.getPoint());
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        addMouseWheelListener(mouse);
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                if (fitToWindow) {
+                    fitToWindow();
+                } else {
+                    contentChanged();
+                }
+            }
+        });
+    }
+
+    public ImagePyramid getPyramid() {
+        return pyramid;
+    }
+
+    // Shows a new image, fitted to the window
+    public void setImage(BufferedImage image) {
+        setPyramid(image == null ? null : new ImagePyramid(image));
+    }
+
+    // Shows a pyramid, typically prepared off the EDT. Zoom and position are kept when the image
+    // size is unchanged, so an edit does not jump the view.
+    public void setPyramid(ImagePyramid next) {
+        boolean sameSize = pyramid != null && next != null
+                && pyramid.width() == next.width() && pyramid.height() == next.height();
+        pyramid = next;
+        preview = null;
+        if (!sameSize) {
+            setSelection(null);
+        }
+        if (!sameSize || fitToWindow) {
+            fitToWindow();
+        } else {
+            contentChanged();
+        }
+    }
+
+    // Shows a display-sized rendering of the whole image until the next setPyramid
+    public void setPreview(BufferedImage image) {
+        preview = image;
+        contentChanged();
+    }
+
+    // The selected part of the image in source pixels, or null
+    public Rectangle getSelection() {
+        return selection == null ? null : new Rectangle(selection);
+    }
+
+    public void setSelection(Rectangle region) {
+        Rectangle previous = selection;
+        selection = region == null || region.isEmpty() ? null : new Rectangle(region);
+        if (previous == null ? selection != null : !previous.equals(selection)) {
+            repaint(); // Drawn over the back buffer, which stays valid
+            firePropertyChange("selection", previous, getSelection());
+        }
+    }
+
+    private void select(Point from, Point to) {
+        Point2D a = toSource(from);
+        Point2D b = toSource(to);
+        int x0 = (int) Math.floor(Math.min(a.getX(), b.getX()));
+        int y0 = (int) Math.floor(Math.min(a.getY(), b.getY()));
+        int x1 = (int) Math.ceil(Math.max(a.getX(), b.getX()));
+        int y1 = (int) Math.ceil(Math.max(a.getY(), b.getY()));
+        setSelection(new Rectangle(x0, y0, x1 - x0, y1 - y0).intersection(new Rectangle(0, 0, pyramid.width(), pyramid.height())));
+    }
+
+    public void fitToWindow() {
+        fitToWindow = true;
+        if (pyramid == null || getWidth() <= 0 || getHeight() <= 0) {
+            contentChanged();
+            return;
+        }
+        double scale = Math.min((double) getWidth() / pyramid.width(), (double) getHeight() / pyramid.height());
+        // Centre the image: the origin may be negative, leaving a margin
+        double originX = (pyramid.width() - getWidth() / scale) / 2;
+        double originY = (pyramid.height() - getHeight() / scale) / 2;
+        view = new View(scale, originX, originY);
+        contentChanged();
+    }
+
+    // Multiplies the zoom, keeping the source point under the anchor where it is
+    public void zoom(double factor, Point anchor) {
+        if (pyramid == null) {
+            return;
+        }
+        View current = view;
+        double fit = Math.min((double) getWidth() / pyramid.width(), (double) getHeight() / pyramid.height());
+        double scale = Math.max(Math.min(fit, 1) / 4, Math.min(MAX_SCALE, current.scale() * factor));
+        double sourceX = current.originX() + anchor.x / current.scale();
+        double sourceY = current.originY() + anchor.y / current.scale();
+        setView(new View(scale, sourceX - anchor.x / scale, sourceY - anchor.y / scale));
+    }
+
+    public double getScale() {
+        return view.scale();
+    }
+
+    // Source pixel under a point of the component
+    public Point2D toSource(Point point) {
+        View current = view;
+        return new Point2D.Double(current.originX() + point.x / current.scale(), current.originY() + point.y / current.scale());
+    }
+
+    // Builds the tiles the current view needs from the given pyramid. Safe to call off the EDT, so
+    // a new pyramid can be made ready before it is shown.
+    public void prepare(ImagePyramid target) {
+        View current = view;
+        if (target == null || current.scale() <= 0) {
+            return;
+        }
+        int level = target.levelFor(current.scale());
+        target.prepare(level, visibleRegion(current, getWidth(), getHeight()));
+    }
+
+    private void setView(View next) {
+        fitToWindow = false;
+        view = next;
+        contentChanged();
+    }
+
+    // The back buffer no longer matches what should be on screen
+    private void contentChanged() {
+        backBufferValid = false;
+        repaint();
+    }
+
+    private static Rectangle visibleRegion(View view, int width, int height) {
+        int x0 = (int) Math.floor(view.originX());
+        int y0 = (int) Math.floor(view.originY());
+        int x1 = (int) Math.ceil(view.originX() + width / view.scale());
+        int y1 = (int) Math.ceil(view.originY() + height / view.scale());
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        int width = getWidth();
+        int height = getHeight();
+        GraphicsConfiguration config = getGraphicsConfiguration();
+        if (config == null || width <= 0 || height <= 0) {
+            render((Graphics2D) g, width, height);
+            return;
+        }
+        do {
+            int status = backBuffer == null || backBuffer.getWidth() != width || backBuffer.getHeight() != height
+                    ? VolatileImage.IMAGE_INCOMPATIBLE : backBuffer.validate(config);
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                if (backBuffer != null) {
+                    backBuffer.flush();
+                }
+                backBuffer = config.createCompatibleVolatileImage(width, height);
+                backBufferValid = false;
+            } else if (status == VolatileImage.IMAGE_RESTORED) {
+                backBufferValid = false; // Video memory was lost, the contents must be drawn again
+            }
+            if (!backBufferValid) {
+                Graphics2D bg = backBuffer.createGraphics();
+                try {
+                    render(bg, width, height);
+                } finally {
+                    bg.dispose();
+                }
+                backBufferValid = true;
+            }
+            g.drawImage(backBuffer, 0, 0, null);
+        } while (backBuffer.contentsLost());
+        paintSelection((Graphics2D) g);
+    }
+
+    private void paintSelection(Graphics2D g) {
+        if (selection == null) {
+            return;
+        }
+        View current = view;
+        int x0 = screenX(current, selection.x);
+        int y0 = screenY(current, selection.y);
+        int x1 = screenX(current, selection.x + selection.width);
+        int y1 = screenY(current, selection.y + selection.height);
+        Stroke stroke = g.getStroke();
+        g.setColor(Color.BLACK);
+        g.drawRect(x0, y0, x1 - x0 - 1, y1 - y0 - 1);
+        g.setColor(Color.WHITE);
+        g.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[]{4, 4}, 0));
+        g.drawRect(x0, y0, x1 - x0 - 1, y1 - y0 - 1);
+        g.setStroke(stroke);
+    }
+
+    private void render(Graphics2D g, int width, int height) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, width, height);
+        if (pyramid == null) {
+            return;
+        }
+        View current = view;
+        double scale = current.scale();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, scale >= 2
+                ? RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR  // Zoomed in far enough to see pixels
+                : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+        if (preview != null) {
+            g.drawImage(preview, screenX(current, 0), screenY(current, 0),
+                    screenX(current, pyramid.width()), screenY(current, pyramid.height()),
+                    0, 0, preview.getWidth(), preview.getHeight(), null);
+            return;
+        }
+
+        Rectangle visible = visibleRegion(current, width, height).intersection(new Rectangle(0, 0, pyramid.width(), pyramid.height()));
+        if (visible.isEmpty()) {
+            return;
+        }
+        int level = pyramid.levelFor(scale);
+        if (level == 0) {
+            // Full resolution: draw just the visible part straight from the image
+            g.drawImage(pyramid.image(),
+                    screenX(current, visible.x), screenY(current, visible.y),
+                    screenX(current, visible.x + visible.width), screenY(current, visible.y + visible.height),
+                    visible.x, visible.y, visible.x + visible.width, visible.y + visible.height, null);
+            return;
+        }
+        int span = ImagePyramid.TILE_SIZE << level;
+        for (int ty = visible.y / span; ty <= (visible.y + visible.height - 1) / span; ty++) {
+            for (int tx = visible.x / span; tx <= (visible.x + visible.width - 1) / span; tx++) {
+                BufferedImage tile = pyramid.tile(level, tx, ty);
+                Rectangle source = pyramid.sourceBounds(level, tx, ty);
+                g.drawImage(tile,
+                        screenX(current, source.x), screenY(current, source.y),
+                        screenX(current, source.x + source.width), screenY(current, source.y + source.height),
+                        0, 0, tile.getWidth(), tile.getHeight(), null);
+            }
+        }
+    }
+
+    // Tile edges are rounded the same way on both sides, so neighbouring tiles meet without gaps
+    private static int screenX(View view, double sourceX) {
+        return (int) Math.round((sourceX - view.originX()) * view.scale());
+    }
+
+    private static int screenY(View view, double sourceY) {
+        return (int) Math.round((sourceY - view.originY()) * view.scale());
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(800, 600);
+    }
+}
@@ -0,0 +1,282 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Images waiting to be viewed, decoded off the EDT. Only a window around the current image is kept
+// decoded: the previous one, for stepping back, and the next few, so stepping forward is instant.
+// Every queued image also gets a small thumbnail, read subsampled so it costs little memory.
+// Listener calls always arrive on the EDT.
+public final class IngestQueue {
+    public static final int THUMBNAIL_SIZE = 96;
+    static final int DEFAULT_PREFETCH = Integer.getInteger("imageedit.prefetch", 2);
+
+    public enum State { QUEUED, DECODING, READY, FAILED }
+
+    public interface Listener {
+        // Entries were added or one changed state or got its thumbnail
+        void queueChanged();
+
+        // The current entry has been decoded; image is null if it failed, see entry.error()
+        void show(int index, Entry entry, BufferedImage image);
+    }
+
+    public static final class Entry {
+        private final File file;
+        private volatile State state = State.QUEUED;
+        private volatile BufferedImage thumbnail;
+        private volatile String error;
+        // Guarded by the queue: the pending or finished decode while the entry is in the window, and
+        // a count bumped whenever it is started or dropped, so a decode left running can tell it is stale
+        private CompletableFuture<BufferedImage> decode;
+        private long decodeGeneration;
+
+        Entry(File file) {
+            this.file = file;
+        }
+
+        public File file() {
+            return file;
+        }
+
+        public State state() {
+            return state;
+        }
+
+        public BufferedImage thumbnail() {
+            return thumbnail;
+        }
+
+        public String error() {
+            return error;
+        }
+    }
+
+    private final int prefetch;
+    private final Listener listener;
+    private final List<Entry> entries = new ArrayList<>();
+    private final ExecutorService decoders;
+    private final ExecutorService thumbnails;
+    private int current = -1;
+    private long selection;
+
+    public IngestQueue(Listener listener) {
+        this(DEFAULT_PREFETCH, listener);
+    }
+
+    public IngestQueue(int prefetch, Listener listener) {
+        this.prefetch = Math.max(0, prefetch);
+        this.listener = listener;
+        // Decoding is single threaded per image, so a couple of workers let the next image decode
+        // while the current one is still in progress
+        this.decoders = Executors.newFixedThreadPool(Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors())), daemon("ingest-decode"));
+        this.thumbnails = Executors.newSingleThreadExecutor(daemon("ingest-thumbnail"));
+    }
+
+    // Queues the files and shows the first of them if nothing is shown yet
+    public void addAll(List<File> files) {
+        List<Entry> added = new ArrayList<>();
+        synchronized (this) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    Entry entry = new Entry(file);
+                    entries.add(entry);
+                    added.add(entry);
+                }
+            }
+            if (added.isEmpty()) {
+                return;
+            }
+            if (current < 0) {
+                select(entries.indexOf(added.get(0)));
+            } else {
+                schedule();
+            }
+        }
+        for (Entry entry : added) {
+            thumbnails.execute(() -> thumbnail(entry));
+        }
+        changed();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized Entry get(int index) {
+        return entries.get(index);
+    }
+
+    public synchronized int current() {
+        return current;
+    }
+
+    public synchronized boolean hasNext() {
+        return current + 1 < entries.size();
+    }
+
+    public synchronized boolean hasPrevious() {
+        return current > 0;
+    }
+
+    public void next() {
+        synchronized (this) {
+            if (hasNext()) {
+                select(current + 1);
+            }
+        }
+    }
+
+    public void previous() {
+        synchronized (this) {
+            if (hasPrevious()) {
+                select(current - 1);
+            }
+        }
+    }
+
+    // Makes index the current entry; the listener's show follows once it is decoded
+    public synchronized void select(int index) {
+        if (index < 0 || index >= entries.size()) {
+            return;
+        }
+        current = index;
+        long generation = ++selection;
+        schedule();
+        Entry entry = entries.get(index);
+        entry.decode.whenComplete((image, error) -> SwingUtilities.invokeLater(() -> {
+            synchronized (this) {
+                if (selection != generation) {
+                    return; // Another image was selected meanwhile
+                }
+            }
+            listener.show(index, entry, image);
+        }));
+    }
+
+    public void shutdown() {
+        decoders.shutdownNow();
+        thumbnails.shutdownNow();
+    }
+
+    // Starts the decodes the window needs, the current image first, and lets go of the rest
+    private void schedule() {
+        List<Integer> order = new ArrayList<>();
+        order.add(current);
+        for (int i = current + 1; i <= current + prefetch && i < entries.size(); i++) {
+            order.add(i);
+        }
+        if (current > 0) {
+            order.add(current - 1);
+        }
+        for (int index : order) {
+            Entry entry = entries.get(index);
+            if (entry.decode == null || entry.decode.isCancelled()) {
+                long generation = ++entry.decodeGeneration;
+                entry.decode = CompletableFuture.supplyAsync(() -> decode(entry, generation), decoders);
+            }
+        }
+        Iterator<Entry> it = entries.iterator();
+        for (int index = 0; it.hasNext(); index++) {
+            Entry entry = it.next();
+            if (!order.contains(index) && entry.decode != null) {
+                // Not started yet: never runs. Done: the image becomes garbage.
+                entry.decode.cancel(false);
+                entry.decode = null;
+                entry.decodeGeneration++;
+                if (entry.state != State.FAILED) {
+                    entry.state = State.QUEUED;
+                }
+            }
+        }
+    }
+
+    // A decode that was dropped while running still returns its image, but leaves the entry alone:
+    // it is QUEUED again, or already has a newer decode of its own
+    private BufferedImage decode(Entry entry, long generation) {
+        setState(entry, generation, State.DECODING, null);
+        changed();
+        long start = System.nanoTime();
+        try {
+            BufferedImage image = ImageIO.read(entry.file);
+            if (image == null) {
+                throw new IOException("Unsupported image format");
+            }
+            StageMetrics.recordNanos("ingest.decode", System.nanoTime() - start);
+            if (entry.thumbnail == null) {
+                entry.thumbnail = ImageScaler.scaleToFit(image, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+            }
+            setState(entry, generation, State.READY, null);
+            return image;
+        } catch (IOException | RuntimeException e) {
+            setState(entry, generation, State.FAILED, e.getMessage());
+            throw new CompletionException(e);
+        } finally {
+            changed();
+        }
+    }
+
+    private synchronized void setState(Entry entry, long generation, State state, String error) {
+        if (entry.decodeGeneration != generation) {
+            return;
+        }
+        if (error != null) {
+            entry.error = error;
+        }
+        entry.state = state;
+    }
+
+    // Reads only every n-th pixel of every n-th row, enough for a thumbnail
+    private void thumbnail(Entry entry) {
+        if (entry.thumbnail != null || entry.state == State.FAILED) {
+            return;
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(entry.file)) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                return; // The decode reports the problem
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int step = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / (2 * THUMBNAIL_SIZE));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                BufferedImage sample = reader.read(0, param);
+                if (entry.thumbnail == null) {
+                    entry.thumbnail = ImageScaler.scaleToFit(sample, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+                    changed();
+                }
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Leave it without a thumbnail; the decode reports the problem
+        }
+    }
+
+    private void changed() {
+        SwingUtilities.invokeLater(listener::queueChanged);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1); // Keep the EDT responsive
+            return thread;
+        };
+    }
+}
@@ -1,201 +1,267 @@
 import java.awt.*;
-import java.awt.geom.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.File;
 import java.io.IOException;
 import javax.imageio.ImageIO;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.*;
-import java.util.Queue;
-import java.util.LinkedList;
 
 
 class ObjectOutline {
+    // Outline vertices closer than this to the simplified polygon are dropped
+    static final double OUTLINE_TOLERANCE = 0.75;
+
     public static BufferedImage detectObjects(BufferedImage originalImage) {
-        BufferedImage grayscaleImage = ImageProcessorObject.convertToGrayscale(originalImage);
-        BufferedImage edgeImage = ImageProcessorObject.applySobelEdgeDetection(grayscaleImage);
-        BufferedImage binaryImage = ImageProcessorObject.binarizeImage(edgeImage, 128); // Example threshold
-        BufferedImage segmentedImage = ImageProcessorObject.performColorBasedSegmentation(originalImage);
-        BufferedImage outlinedImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = outlinedImage.createGraphics();
-        graphics.drawImage(originalImage, 0, 0, null);
-        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        graphics.setColor(Color.BLACK);
-        graphics.setStroke(new BasicStroke(1, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-
-        // Create a thread pool executor with fixed number of threads
-        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        // List to hold detected objects
-        List<Shape> objects = new ArrayList<>();
-
-        // Calculate the height per thread for dividing the image
-        int heightPerThread = originalImage.getHeight() / executor.getMaximumPoolSize();
-
-        // Divide the image and assign portions to threads for processing
-        for (int i = 0; i < executor.getMaximumPoolSize(); i++) {
-            int startY = i * heightPerThread;
-            int endY = (i == executor.getMaximumPoolSize() - 1) ? originalImage.getHeight() : (i + 1) * heightPerThread;
-            final int threadStartY = startY;
-
-            // Execute each portion of the image processing in a separate thread
-            executor.execute(() -> {
-                List<Shape> threadObjects = ImageProcessorObject.findObjects(binaryImage, segmentedImage, threadStartY, endY);
-                synchronized (objects) {
-                    objects.addAll(threadObjects);
-                }
-            });
-        }
+        return drawContours(originalImage, findContours(originalImage));
+    }
 
-        // Shutdown the executor after all threads finish processing
-        executor.shutdown();
+    // The outlines detectObjects would draw, as polygons
+    public static List<Contour> findContours(BufferedImage originalImage) {
+        // Both masks are dropped once the contours are traced, so they come from the pool
+        BufferPool pool = BufferPool.shared();
+        BitMask edges = pool.leaseMask(originalImage.getWidth(), originalImage.getHeight());
+        BitMask segmentedMask = pool.leaseMask(originalImage.getWidth(), originalImage.getHeight());
         try {
-            // Wait for all threads to finish
-            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            // Grayscale, Sobel and binarize in a single fused pass
+            EdgeDetector.detect(originalImage, 128, edges); // Example threshold
+            ImageProcessorObject.performColorBasedSegmentation(originalImage, segmentedMask);
+            return ImageProcessorObject.findObjects(edges, segmentedMask, OUTLINE_TOLERANCE);
+        } finally {
+            pool.release(edges);
+            pool.release(segmentedMask);
         }
+    }
 
-        for (Shape object : objects) {
-            graphics.draw(object); // Draw the detected object's shape as the outline
-        }
+    public static BufferedImage drawContours(BufferedImage originalImage, List<Contour> contours) {
+        return drawContours(originalImage, contours,
+                new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_RGB));
+    }
+
+    // Draws into outlinedImage, e.g. a buffer reused between frames; it must be the size of the original
+    public static BufferedImage drawContours(BufferedImage originalImage, List<Contour> contours, BufferedImage outlinedImage) {
+        try (StageTimer timer = StageTimer.start("drawing", originalImage)) {
+            Graphics2D graphics = outlinedImage.createGraphics();
+            // Cleared as a new image would be, so a reused buffer's old contents never show through
+            graphics.setColor(Color.BLACK);
+            graphics.fillRect(0, 0, outlinedImage.getWidth(), outlinedImage.getHeight());
+            graphics.drawImage(originalImage, 0, 0, null);
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.setColor(Color.BLACK);
+            graphics.setStroke(new BasicStroke(1, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+
+            for (Contour contour : contours) {
+                graphics.draw(contour.toPath()); // Draw the detected object's outline
+            }
 
-        graphics.dispose();
-        return outlinedImage;
+            graphics.dispose();
+            return outlinedImage;
+        }
     }
 }
 
 class ImageProcessorObject {
     public static BufferedImage convertToGrayscale(BufferedImage image) {
-        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
-        Graphics g = result.getGraphics();
-        g.drawImage(image, 0, 0, null);
-        g.dispose();
-        return result;
+        return convertToGrayscale(image, new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY));
     }
 
-    public static BufferedImage applySobelEdgeDetection(BufferedImage grayscaleImage) {
-        final int width = grayscaleImage.getWidth();
-        final int height = grayscaleImage.getHeight();
-        BufferedImage output = new BufferedImage(width, height, grayscaleImage.getType());
-
-        for (int y = 1; y < height - 1; y++) {
-            for (int x = 1; x < width - 1; x++) {
-                int px = grayscaleImage.getRGB(x, y) & 0xFF;
-
-                int px00 = grayscaleImage.getRGB(x - 1, y - 1) & 0xFF;
-                int px20 = grayscaleImage.getRGB(x + 1, y - 1) & 0xFF;
-                int px02 = grayscaleImage.getRGB(x - 1, y + 1) & 0xFF;
-                int px22 = grayscaleImage.getRGB(x + 1, y + 1) & 0xFF;
-                int px10 = grayscaleImage.getRGB(x, y - 1) & 0xFF;
-                int px12 = grayscaleImage.getRGB(x, y + 1) & 0xFF;
-                int px01 = grayscaleImage.getRGB(x - 1, y) & 0xFF;
-                int px21 = grayscaleImage.getRGB(x + 1, y) & 0xFF;
-
-                // Sobel X filter
-                int gx = ((px20 + 2 * px21 + px22) - (px00 + 2 * px01 + px02));
-                // Sobel Y filter
-                int gy = ((px02 + 2 * px12 + px22) - (px00 + 2 * px10 + px20));
-
-                int gval = (int) Math.sqrt(gx * gx + gy * gy);
-                output.setRGB(x, y, gval > 255 ? 0xFFFFFFFF : (0xFF000000 | (gval << 16 | gval << 8 | gval)));
+    // Into result, a TYPE_BYTE_GRAY image the size of image, e.g. one leased from a BufferPool
+    public static BufferedImage convertToGrayscale(BufferedImage image, BufferedImage result) {
+        try (StageTimer timer = StageTimer.start("grayscale", image)) {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            checkDestination(result, width, height, BufferedImage.TYPE_BYTE_GRAY);
+            if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+                // The same samples Java2D's blit stores, a whole vector of pixels at a time
+                int[] pixels = PixelAccess.rgb(image);
+                byte[] samples = PixelAccess.gray(result).data;
+                ComputePool.forEachTile(height, ComputePool.tileRows(width), (startY, endY) ->
+                        SimdKernels.graySamples(pixels, startY * width, samples, startY * width, (endY - startY) * width));
+                return result;
             }
+            Graphics g = result.getGraphics();
+            // Translucent pixels blend with black, as they would on a new image
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            return result;
         }
-        return output;
     }
 
-    public static BufferedImage binarizeImage(BufferedImage edgeImage, int threshold) {
-        BufferedImage result = new BufferedImage(edgeImage.getWidth(), edgeImage.getHeight(), BufferedImage.TYPE_BYTE_BINARY);
-        for (int y = 0; y < edgeImage.getHeight(); y++) {
-            for (int x = 0; x < edgeImage.getWidth(); x++) {
-                int rgb = edgeImage.getRGB(x, y) & 0xFF;
-                result.setRGB(x, y, rgb > threshold ? 0xFFFFFFFF : 0x00000000);
-            }
-        }
-        return result;
-    }
-
-    public static BufferedImage performColorBasedSegmentation(BufferedImage originalImage) {
-        BufferedImage segmentedImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_BYTE_BINARY);
-        // Example: Simple thresholding based on RGB intensity
-        int thresholdRed = 100;
-        int thresholdGreen = 100;
-        int thresholdBlue = 100;
-
-        for (int y = 0; y < originalImage.getHeight(); y++) {
-            for (int x = 0; x < originalImage.getWidth(); x++) {
-                Color color = new Color(originalImage.getRGB(x, y));
-                int red = color.getRed();
-                int green = color.getGreen();
-                int blue = color.getBlue();
-                // Check if color intensity exceeds thresholds
-                if (red > thresholdRed && green > thresholdGreen && blue > thresholdBlue) {
-                    segmentedImage.setRGB(x, y, Color.WHITE.getRGB()); // Set as foreground
-                } else {
-                    segmentedImage.setRGB(x, y, Color.BLACK.getRGB()); // Set as background
-                }
+    public static BufferedImage applySobelEdgeDetection(BufferedImage grayscaleImage) {
+        return applySobelEdgeDetection(grayscaleImage,
+                new BufferedImage(grayscaleImage.getWidth(), grayscaleImage.getHeight(), BufferedImage.TYPE_BYTE_GRAY));
+    }
+
+    // Into output, a TYPE_BYTE_GRAY image the size of the input, e.g. one leased from a BufferPool
+    public static BufferedImage applySobelEdgeDetection(BufferedImage grayscaleImage, BufferedImage output) {
+        try (StageTimer timer = StageTimer.start("sobel", grayscaleImage)) {
+            final int width = grayscaleImage.getWidth();
+            final int height = grayscaleImage.getHeight();
+            checkDestination(output, width, height, BufferedImage.TYPE_BYTE_GRAY);
+            PixelAccess.GrayPlane in = PixelAccess.gray(grayscaleImage);
+            PixelAccess.GrayPlane out = PixelAccess.gray(output);
+            // The border has no gradient; a reused image may still hold something there
+            clearBorder(out, width, height);
+            if (width < 3) {
+                return output;
             }
-        }
-        return segmentedImage;
-    }
-
-    public static List<Shape> findObjects(BufferedImage binaryImage, BufferedImage originalImage, int startY, int endY) {
-        List<Shape> objects = new ArrayList<>();
-        boolean[][] visited = new boolean[binaryImage.getWidth()][binaryImage.getHeight()];
-        int outlineThickness = 1; // Define the outline thickness here (thinner)
-        for (int y = startY; y < endY; y++) {
-            for (int x = 0; x < binaryImage.getWidth(); x++) {
-                if (!visited[x][y] && (binaryImage.getRGB(x, y) & 0xFF) == 255) {
-                    Shape object = floodFill(binaryImage, visited, x, y, outlineThickness);
-                    if (isObjectLargeEnough(object, originalImage)) {
-                        objects.add(object);
+
+            BufferPool pool = BufferPool.shared();
+            ComputePool.forEachTile(height, ComputePool.tileRows(width), (startY, endY) -> {
+                int[] above = pool.leaseInts(width);
+                int[] row = pool.leaseInts(width);
+                int[] below = pool.leaseInts(width);
+                int[] magnitude = pool.leaseInts(width);
+                for (int y = Math.max(1, startY); y < Math.min(height - 1, endY); y++) {
+                    in.levels((y - 1) * width, above, width);
+                    in.levels(y * width, row, width);
+                    in.levels((y + 1) * width, below, width);
+                    // Sobel X and Y filters, then the clamped gradient magnitude
+                    SimdKernels.sobelSquared(above, row, below, width, magnitude);
+                    SimdKernels.magnitudes(magnitude, 1, width - 1);
+                    for (int x = 1, i = y * width + 1; x < width - 1; x++, i++) {
+                        out.setLevel(i, magnitude[x]);
                     }
                 }
+                pool.release(above);
+                pool.release(row);
+                pool.release(below);
+                pool.release(magnitude);
+            });
+            return output;
+        }
+    }
+
+    private static void clearBorder(PixelAccess.GrayPlane plane, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            boolean borderRow = y == 0 || y == height - 1 || width < 3;
+            for (int x = 0; x < width; x += borderRow || x == width - 1 ? 1 : width - 1) {
+                plane.setLevel(y * width + x, 0);
             }
         }
-        return objects;
-    }
-
-    private static Shape floodFill(BufferedImage image, boolean[][] visited, int x, int y, int outlineThickness) {
-        Graphics2D g2d = image.createGraphics();
-        Path2D path = new Path2D.Double();
-        Queue<Point> queue = new LinkedList<>();
-        queue.add(new Point(x, y));
-        int minX = x, maxX = x, minY = y, maxY = y;
-        while (!queue.isEmpty()) {
-            Point p = queue.poll();
-            if (visited[p.x][p.y]) continue;
-            visited[p.x][p.y] = true;
-            boolean isBorderPixel = false;
-            for (int dx = -1; dx <= 1; dx++) {
-                for (int dy = -1; dy <= 1; dy++) {
-                    int nx = p.x + dx, ny = p.y + dy;
-                    if (nx >= 0 && ny >= 0 && nx < image.getWidth() && ny < image.getHeight() && !visited[nx][ny]) {
-                        if ((image.getRGB(nx, ny) & 0xFF) == 255) {
-                            queue.add(new Point(nx, ny));
+    }
+
+    private static void checkDestination(BufferedImage destination, int width, int height, int type) {
+        if (destination.getWidth() != width || destination.getHeight() != height || destination.getType() != type
+                || !PixelAccess.isCompact(destination)) {
+            throw new IllegalArgumentException("Destination must be a full " + width + "x" + height + " image of type " + type);
+        }
+    }
+
+    public static BitMask binarizeImage(BufferedImage edgeImage, int threshold) {
+        return binarizeImage(edgeImage, threshold, new BitMask(edgeImage.getWidth(), edgeImage.getHeight()));
+    }
+
+    // Writes every word of result, so a reused mask needs no clearing
+    public static BitMask binarizeImage(BufferedImage edgeImage, int threshold, BitMask result) {
+        try (StageTimer timer = StageTimer.start("binarize", edgeImage)) {
+            int width = edgeImage.getWidth();
+            int height = edgeImage.getHeight();
+            checkDestination(result, width, height);
+            PixelAccess.GrayPlane edges = PixelAccess.gray(edgeImage);
+            // Gray levels only grow with the raw sample, so the level threshold becomes a sample threshold
+            int minimumSample = edges.firstSampleAbove(threshold);
+            ComputePool.forEachTile(height, ComputePool.tileRows(width), (startY, endY) -> {
+                for (int y = startY; y < endY; y++) {
+                    for (int x = 0; x < width; x += 64) {
+                        long bits = 0;
+                        if (minimumSample >= 0) {
+                            bits = SimdKernels.thresholdSamples(edges.data, y * width + x, Math.min(64, width - x), minimumSample);
                         } else {
-                            isBorderPixel = true;
+                            for (int i = y * width + x, bit = 0; bit < 64 && x + bit < width; bit++, i++) {
+                                if (edges.level(i) > threshold) {
+                                    bits |= 1L << bit;
+                                }
+                            }
                         }
+                        result.setWord(x, y, bits);
                     }
                 }
+            });
+            return result;
+        }
+    }
+
+    public static BitMask performColorBasedSegmentation(BufferedImage originalImage) {
+        return performColorBasedSegmentation(originalImage, new BitMask(originalImage.getWidth(), originalImage.getHeight()));
+    }
+
+    // Writes every word of result, so a reused mask needs no clearing
+    public static BitMask performColorBasedSegmentation(BufferedImage originalImage, BitMask result) {
+        try (StageTimer timer = StageTimer.start("segmentation", originalImage)) {
+            int width = originalImage.getWidth();
+            int height = originalImage.getHeight();
+            checkDestination(result, width, height);
+            // JPEG-decoded BGR bytes are packed a row at a time rather than copied whole into ints
+            byte[] bgr = PixelAccess.isCompactBgr(originalImage)
+                    ? ((DataBufferByte) originalImage.getRaster().getDataBuffer()).getData() : null;
+            int[] pixels = bgr != null ? null : PixelAccess.rgb(originalImage);
+            // Example: Simple thresholding based on RGB intensity
+            int thresholdRed = 100;
+            int thresholdGreen = 100;
+            int thresholdBlue = 100;
+
+            BufferPool pool = BufferPool.shared();
+            ComputePool.forEachTile(height, ComputePool.tileRows(width), (startY, endY) -> {
+                int[] packed = bgr != null ? pool.leaseInts(width) : null;
+                for (int y = startY; y < endY; y++) {
+                    int[] row = pixels;
+                    int rowStart = y * width;
+                    if (bgr != null) {
+                        PixelAccess.bgrPixels(bgr, y * width, packed, 0, width);
+                        row = packed;
+                        rowStart = 0;
+                    }
+                    for (int x = 0; x < width; x += 64) {
+                        // Foreground when every channel exceeds its threshold
+                        long bits = SimdKernels.segmentationBits(row, rowStart + x, Math.min(64, width - x),
+                                thresholdRed, thresholdGreen, thresholdBlue);
+                        result.setWord(x, y, bits);
+                    }
+                }
+                if (packed != null) {
+                    pool.release(packed);
+                }
+            });
+            return result;
+        }
+    }
+
+    private static void checkDestination(BitMask destination, int width, int height) {
+        if (destination.width() != width || destination.height() != height) {
+            throw new IllegalArgumentException("Mask is " + destination.width() + "x" + destination.height()
+                    + ", image is " + width + "x" + height);
+        }
+    }
+
+    // Outer contours of the objects in mask that are large enough relative to the reference mask
+    public static List<Contour> findObjects(BitMask mask, BitMask reference, double tolerance) {
+        // The labels, the largest buffer here, are only needed until the contours are traced
+        BufferPool pool = BufferPool.shared();
+        int[] labels = pool.leaseInts(mask.width() * mask.height());
+        try {
+            ComponentLabeler.Labeling labeling;
+            try (StageTimer timer = StageTimer.start("labelling", mask)) {
+                labeling = ComponentLabeler.label(mask, labels);
             }
-            if (isBorderPixel) {
-                int outlineOffset = outlineThickness / 2; // Offset to center the outline
-                int outlineX = Math.max(0, p.x - outlineOffset);
-                int outlineY = Math.max(0, p.y - outlineOffset);
-                int outlineWidth = Math.min(image.getWidth() - outlineX, outlineThickness);
-                int outlineHeight = Math.min(image.getHeight() - outlineY, outlineThickness);
-                path.append(new Rectangle(outlineX, outlineY, outlineWidth, outlineHeight), false);
+            List<Contour> objects = new ArrayList<>();
+            try (StageTimer timer = StageTimer.start("tracing", mask)) {
+                for (ComponentLabeler.Component component : labeling.components()) {
+                    if (isObjectLargeEnough(component, reference)) {
+                        objects.add(ContourTracer.trace(labeling, component).simplify(tolerance));
+                    }
+                }
             }
+            return objects;
+        } finally {
+            pool.release(labels);
         }
-        return path;
     }
 
-
-    private static boolean isObjectLargeEnough(Shape object, BufferedImage image) {
-        Rectangle bounds = object.getBounds();
-        double minSize = Math.min(image.getWidth(), image.getHeight()) * 0.1; // 1/5th of the smaller dimension
-        return bounds.width >= minSize && bounds.height >= minSize;
+    private static boolean isObjectLargeEnough(ComponentLabeler.Component component, BitMask reference) {
+        double minSize = Math.min(reference.width(), reference.height()) * 0.1; // 1/10th of the smaller dimension
+        return component.width() >= minSize && component.height() >= minSize;
     }
 }
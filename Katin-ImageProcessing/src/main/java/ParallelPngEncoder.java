@@ -0,0 +1,257 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+// Writes a whole image as PNG with its rows split into blocks that are filtered and deflated in
+// parallel on the compute pool. Every block but the last ends with a sync flush, which leaves the
+// raw deflate streams byte aligned so they simply concatenate; the zlib header goes in front and
+// the Adler-32 of the whole stream, combined from the blocks' own checksums, at the end. Each block
+// is primed with the 32 KB of filtered data before it, so splitting costs next to nothing in size.
+public final class ParallelPngEncoder {
+    // Unfiltered bytes per block: a 12 MP RGB image gives about 70 blocks, while the rows each
+    // block refilters for its dictionary stay a small share of its work
+    private static final int BLOCK_BYTES = 1 << 19;
+    private static final int DICTIONARY_BYTES = 1 << 15;
+
+    private ParallelPngEncoder() {
+    }
+
+    // Unfiltered PNG rows of one image layout; reads must be safe to run concurrently
+    private interface RowReader {
+        void read(int y, byte[] row);
+    }
+
+    private record Source(PngWriter.Format format, RowReader reader) {
+    }
+
+    // One block's deflate output; the first block's starts with the zlib header
+    private record Block(byte[] data, int length, long adler, long rawBytes) {
+    }
+
+    // Whether the image has a layout this encoder can write as is; others should go through ImageIO
+    public static boolean supports(BufferedImage image) {
+        return source(image) != null;
+    }
+
+    // level is a Deflater level, 0 to 9 or -1 for the default. progress gets the fraction written
+    // after each block; once cancelled returns true the write stops with a CancellationException.
+    public static void write(BufferedImage image, OutputStream out, int level, DoubleConsumer progress,
+                             BooleanSupplier cancelled) throws IOException {
+        Source source = source(image);
+        if (source == null) {
+            throw new IllegalArgumentException("No direct PNG layout for image type " + image.getType());
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowBytes = source.format().rowBytes(width);
+        int blockRows = Math.max(1, BLOCK_BYTES / (rowBytes + 1));
+        int blocks = (height + blockRows - 1) / blockRows;
+
+        DataOutputStream data = new DataOutputStream(out);
+        PngWriter.writeHeader(data, width, height, source.format());
+        ForkJoinPool pool = ComputePool.pool();
+        // Blocks are written in order, so only a couple per worker run ahead of the writer
+        int window = 2 * pool.getParallelism();
+        ArrayDeque<ForkJoinTask<Block>> pending = new ArrayDeque<>();
+        int submitted = 0;
+        long adler = 1;
+        try {
+            for (int b = 0; b < blocks; b++) {
+                for (; submitted < blocks && submitted < b + window; submitted++) {
+                    int startRow = submitted * blockRows;
+                    int endRow = Math.min(height, startRow + blockRows);
+                    pending.add(pool.submit(() -> deflateBlock(source, rowBytes, startRow, endRow, height, level)));
+                }
+                if (cancelled.getAsBoolean()) {
+                    throw new CancellationException("Export cancelled");
+                }
+                Block block = pending.removeFirst().join();
+                adler = b == 0 ? block.adler() : adler32Combine(adler, block.adler(), block.rawBytes());
+                byte[] bytes = block.data();
+                int length = block.length();
+                if (b == blocks - 1) {
+                    PngWriter.putInt(bytes, length, (int) adler);
+                    length += 4;
+                }
+                PngWriter.writeChunk(data, "IDAT", bytes, 0, length);
+                progress.accept((double) (b + 1) / blocks);
+            }
+        } finally {
+            for (ForkJoinTask<Block> task : pending) {
+                task.cancel(false);
+            }
+        }
+        PngWriter.writeChunk(data, "IEND", new byte[0], 0, 0);
+        data.flush();
+    }
+
+    private static Block deflateBlock(Source source, int rowBytes, int startRow, int endRow, int height, int level) {
+        int stride = rowBytes + 1;
+        int bpp = source.format().filterBytes;
+        // The rows just above the block are filtered again, only to serve as its dictionary
+        int primeRows = Math.min(startRow, (DICTIONARY_BYTES + stride - 1) / stride);
+        int firstRow = startRow - primeRows;
+        byte[] filtered = new byte[(endRow - firstRow) * stride];
+        byte[] row = new byte[rowBytes];
+        byte[] prior = new byte[rowBytes];
+        byte[][] candidates = PngWriter.filterCandidates(rowBytes);
+        boolean adaptive = PngWriter.adaptiveFiltering(level);
+        if (firstRow > 0) {
+            source.reader().read(firstRow - 1, prior);
+        }
+        for (int y = firstRow, offset = 0; y < endRow; y++, offset += stride) {
+            source.reader().read(y, row);
+            byte[] best = adaptive ? PngWriter.filterRow(row, prior, rowBytes, bpp, candidates)
+                    : PngWriter.filterUp(row, prior, rowBytes, candidates);
+            System.arraycopy(best, 0, filtered, offset, stride);
+            byte[] recycled = prior;
+            prior = row;
+            row = recycled;
+        }
+
+        int prime = primeRows * stride;
+        int length = filtered.length - prime;
+        boolean first = startRow == 0;
+        boolean last = endRow == height;
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (prime > 0) {
+                int dictionary = Math.min(DICTIONARY_BYTES, prime);
+                deflater.setDictionary(filtered, prime - dictionary, dictionary);
+            }
+            deflater.setInput(filtered, prime, length);
+            if (last) {
+                deflater.finish();
+            }
+            // Room for the zlib header in the first block and the checksum after the last
+            byte[] out = new byte[length / 2 + 64];
+            int size = 0;
+            if (first) {
+                out[size++] = 0x78;
+                out[size++] = zlibFlags(level);
+            }
+            while (true) {
+                size += last
+                        ? deflater.deflate(out, size, out.length - size - 4)
+                        : deflater.deflate(out, size, out.length - size, Deflater.SYNC_FLUSH);
+                // A sync flush is complete once it stops filling the whole buffer
+                if (last ? deflater.finished() : size < out.length) {
+                    break;
+                }
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            Adler32 checksum = new Adler32();
+            checksum.update(filtered, prime, length);
+            return new Block(out, size, checksum.getValue(), length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // FLG byte for CMF 0x78 (deflate, 32 KB window): the level hint, with the check bits making
+    // the pair a multiple of 31
+    private static byte zlibFlags(int level) {
+        if (level == 0 || level == 1) {
+            return 0x01;
+        }
+        if (level >= 2 && level <= 5) {
+            return 0x5E;
+        }
+        return (byte) (level >= 7 ? 0xDA : 0x9C);
+    }
+
+    // Adler-32 of A followed by B from the checksums of each and B's length, as zlib's adler32_combine
+    static long adler32Combine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = remainder * sum1 % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += (adler1 >>> 16 & 0xFFFF) + (adler2 >>> 16 & 0xFFFF) + base - remainder;
+        return (sum2 % base) << 16 | (sum1 % base);
+    }
+
+    // The PNG format matching the image's own samples, read straight from its buffer; ImageIO writes
+    // these layouts the same way. Null for anything else.
+    private static Source source(BufferedImage image) {
+        if (!PixelAccess.isCompact(image)) {
+            return null;
+        }
+        int width = image.getWidth();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB: {
+                int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                return new Source(PngWriter.Format.RGB, (y, row) -> {
+                    for (int x = 0, i = y * width, j = 0; x < width; x++, i++, j += 3) {
+                        int rgb = pixels[i];
+                        row[j] = (byte) (rgb >> 16);
+                        row[j + 1] = (byte) (rgb >> 8);
+                        row[j + 2] = (byte) rgb;
+                    }
+                });
+            }
+            case BufferedImage.TYPE_INT_ARGB: {
+                int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                return new Source(PngWriter.Format.RGBA, (y, row) -> {
+                    for (int x = 0, i = y * width, j = 0; x < width; x++, i++, j += 4) {
+                        int argb = pixels[i];
+                        row[j] = (byte) (argb >> 16);
+                        row[j + 1] = (byte) (argb >> 8);
+                        row[j + 2] = (byte) argb;
+                        row[j + 3] = (byte) (argb >>> 24);
+                    }
+                });
+            }
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                byte[] samples = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                return new Source(PngWriter.Format.RGB, (y, row) -> {
+                    for (int x = 0, i = y * width * 3, j = 0; x < width; x++, i += 3, j += 3) {
+                        row[j] = samples[i + 2];
+                        row[j + 1] = samples[i + 1];
+                        row[j + 2] = samples[i];
+                    }
+                });
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                byte[] samples = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                return new Source(PngWriter.Format.RGBA, (y, row) -> {
+                    for (int x = 0, i = y * width * 4, j = 0; x < width; x++, i += 4, j += 4) {
+                        row[j] = samples[i + 3];
+                        row[j + 1] = samples[i + 2];
+                        row[j + 2] = samples[i + 1];
+                        row[j + 3] = samples[i];
+                    }
+                });
+            }
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                byte[] samples = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                return new Source(PngWriter.Format.GRAY, (y, row) -> System.arraycopy(samples, y * width, row, 0, width));
+            }
+            case BufferedImage.TYPE_BYTE_BINARY: {
+                // Only the black and white palette BitMask.toImage uses maps to 1-bit gray
+                if (!(image.getColorModel() instanceof IndexColorModel palette) || palette.getPixelSize() != 1
+                        || palette.getMapSize() != 2 || (palette.getRGB(0) & 0xFFFFFF) != 0 || (palette.getRGB(1) & 0xFFFFFF) != 0xFFFFFF) {
+                    return null;
+                }
+                byte[] samples = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                int stride = PngWriter.Format.BILEVEL.rowBytes(width);
+                return new Source(PngWriter.Format.BILEVEL, (y, row) -> System.arraycopy(samples, y * stride, row, 0, stride));
+            }
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.awt.image.*;
+
+// Direct access to the arrays backing a BufferedImage, so processing loops can run over primitives
+// instead of going through getRGB/setRGB and the ColorModel for every pixel
+public final class PixelAccess {
+    // TYPE_BYTE_GRAY stores linear gray, while getRGB/setRGB work in sRGB. These tables map
+    // raw samples to the level getRGB would report and back, so results match the old code exactly
+    private static final int[] GRAY_DECODE = new int[256];
+    private static final byte[] GRAY_ENCODE = new byte[256];
+    private static final int[] IDENTITY = new int[256];
+    private static final byte[] IDENTITY_BYTES = new byte[256];
+
+    static {
+        BufferedImage probe = new BufferedImage(256, 1, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] samples = ((DataBufferByte) probe.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < 256; i++) {
+            samples[i] = (byte) i;
+        }
+        for (int i = 0; i < 256; i++) {
+            GRAY_DECODE[i] = probe.getRGB(i, 0) & 0xFF;
+            IDENTITY[i] = i;
+            IDENTITY_BYTES[i] = (byte) i;
+        }
+        for (int i = 0; i < 256; i++) {
+            probe.setRGB(i, 0, 0xFF000000 | (i << 16) | (i << 8) | i);
+        }
+        System.arraycopy(samples, 0, GRAY_ENCODE, 0, 256);
+    }
+
+    private PixelAccess() {
+    }
+
+    // An 8-bit gray plane: level(i) gives the sRGB gray level of pixel i, encode(level) the raw sample to store
+    public static final class GrayPlane {
+        public final byte[] data;
+        public final int width;
+        public final int height;
+        final int[] decode;
+        final byte[] encode;
+
+        GrayPlane(byte[] data, int width, int height, int[] decode, byte[] encode) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.decode = decode;
+            this.encode = encode;
+        }
+
+        public int level(int index) {
+            return decode[data[index] & 0xFF];
+        }
+
+        public void setLevel(int index, int level) {
+            data[index] = encode[level];
+        }
+
+        // Levels of count pixels from index on
+        public void levels(int index, int[] levels, int count) {
+            for (int k = 0; k < count; k++) {
+                levels[k] = decode[data[index + k] & 0xFF];
+            }
+        }
+
+        // The smallest raw sample whose level is above threshold (256 if none), so a threshold on levels
+        // can be applied to the raw bytes; -1 if the decode table is not monotonic and there is none
+        int firstSampleAbove(int threshold) {
+            int first = 0;
+            while (first < 256 && decode[first] <= threshold) {
+                first++;
+            }
+            for (int sample = 0; sample < 256; sample++) {
+                if ((decode[sample] > threshold) != (sample >= first)) {
+                    return -1;
+                }
+            }
+            return first;
+        }
+    }
+
+    // The sRGB level getRGB reports for a raw TYPE_BYTE_GRAY sample
+    static int grayLevel(int sample) {
+        return GRAY_DECODE[sample & 0xFF];
+    }
+
+    // The whole sample to level table, for kernels that look levels up in bulk
+    static int[] grayDecodeTable() {
+        return GRAY_DECODE;
+    }
+
+    // The level read back after storing the given level in a TYPE_BYTE_GRAY image with setRGB
+    static int grayRoundTrip(int level) {
+        return GRAY_DECODE[GRAY_ENCODE[level] & 0xFF];
+    }
+
+    // Packed pixels with RGB in the low 24 bits, row-major with a stride equal to the width.
+    // For TYPE_INT_RGB/TYPE_INT_ARGB this is the image's own array, so writes go straight to the image.
+    // The alpha byte is not normalized; callers that need it should use argb().
+    public static int[] rgb(BufferedImage image) {
+        int type = image.getType();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) && isCompact(image)) {
+            return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+        return argb(image);
+    }
+
+    // Packed 0xAARRGGBB pixels exactly as getRGB would report them. Only shared with the image for TYPE_INT_ARGB.
+    public static int[] argb(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int type = image.getType();
+        if (isCompact(image)) {
+            DataBuffer buffer = image.getRaster().getDataBuffer();
+            switch (type) {
+                case BufferedImage.TYPE_INT_ARGB:
+                    return ((DataBufferInt) buffer).getData();
+                case BufferedImage.TYPE_INT_RGB: {
+                    int[] data = ((DataBufferInt) buffer).getData();
+                    int[] result = new int[width * height];
+                    for (int i = 0; i < result.length; i++) {
+                        result[i] = 0xFF000000 | data[i];
+                    }
+                    return result;
+                }
+                case BufferedImage.TYPE_3BYTE_BGR: {
+                    int[] result = new int[width * height];
+                    bgrPixels(((DataBufferByte) buffer).getData(), 0, result, 0, result.length);
+                    return result;
+                }
+                case BufferedImage.TYPE_4BYTE_ABGR: {
+                    byte[] data = ((DataBufferByte) buffer).getData();
+                    int[] result = new int[width * height];
+                    for (int i = 0, j = 0; i < result.length; i++, j += 4) {
+                        result[i] = (data[j] & 0xFF) << 24 | (data[j + 3] & 0xFF) << 16 | (data[j + 2] & 0xFF) << 8 | (data[j + 1] & 0xFF);
+                    }
+                    return result;
+                }
+                default:
+                    break;
+            }
+        }
+        // Any other layout: one bulk conversion is still far cheaper than per-pixel calls
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    // The gray plane of an image. Shared with the image for TYPE_BYTE_GRAY, otherwise a converted copy.
+    public static GrayPlane gray(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY && isCompact(image)) {
+            byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            return new GrayPlane(data, width, height, GRAY_DECODE, GRAY_ENCODE);
+        }
+        int[] pixels = argb(image);
+        byte[] data = new byte[width * height];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) pixels[i];
+        }
+        return new GrayPlane(data, width, height, IDENTITY, IDENTITY_BYTES);
+    }
+
+    // Packs count pixels of a compact TYPE_3BYTE_BGR buffer, from pixel index first, the way argb does,
+    // so stages can convert a row at a time instead of the whole image
+    static void bgrPixels(byte[] data, int first, int[] pixels, int offset, int count) {
+        for (int i = offset, j = first * 3; i < offset + count; i++, j += 3) {
+            pixels[i] = 0xFF000000 | (data[j + 2] & 0xFF) << 16 | (data[j + 1] & 0xFF) << 8 | (data[j] & 0xFF);
+        }
+    }
+
+    // A TYPE_3BYTE_BGR image whose bytes bgrPixels can read directly
+    static boolean isCompactBgr(BufferedImage image) {
+        return image.getType() == BufferedImage.TYPE_3BYTE_BGR && isCompact(image);
+    }
+
+    // True when the raster covers its whole buffer with no offsets or padding (not a getSubimage view)
+    static boolean isCompact(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        if (raster.getParent() != null || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+            return false;
+        }
+        DataBuffer buffer = raster.getDataBuffer();
+        if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0) {
+            return false;
+        }
+        SampleModel model = raster.getSampleModel();
+        int width = image.getWidth();
+        if (model instanceof SinglePixelPackedSampleModel packed) {
+            return packed.getScanlineStride() == width;
+        }
+        if (model instanceof PixelInterleavedSampleModel interleaved) {
+            return interleaved.getScanlineStride() == width * interleaved.getPixelStride();
+        }
+        if (model instanceof MultiPixelPackedSampleModel bits) {
+            return bits.getDataBitOffset() == 0 && bits.getScanlineStride() == (width * bits.getPixelBitStride() + 7) / 8;
+        }
+        return false;
+    }
+}
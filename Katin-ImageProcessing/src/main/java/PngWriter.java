@@ -0,0 +1,283 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Streams a PNG row by row, so an image never has to exist in memory as a whole.
+// Rows must be written top to bottom, then finish() writes the trailer.
+public final class PngWriter {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    static final int CHUNK_SIZE = 1 << 16;
+    // Compression levels up to this use the Up filter alone: several times cheaper than trying all
+    // five, and usually close in size on continuous-tone images
+    static final int FAST_FILTER_LEVEL = 2;
+
+    public enum Format {
+        RGB(2, 8, 3),     // 8-bit truecolour from packed 0xRRGGBB pixels
+        RGBA(6, 8, 4),    // 8-bit truecolour with alpha
+        GRAY(0, 8, 1),    // 8-bit gray
+        BILEVEL(0, 1, 1); // 1-bit gray from BitMask rows, set bits are white
+
+        final int colorType;
+        final int bitDepth;
+        final int filterBytes; // Distance to the byte the Sub/Paeth filters look back to
+
+        Format(int colorType, int bitDepth, int filterBytes) {
+            this.colorType = colorType;
+            this.bitDepth = bitDepth;
+            this.filterBytes = filterBytes;
+        }
+
+        // Bytes of one unfiltered row; every 8-bit format has one byte per channel
+        int rowBytes(int width) {
+            return (int) (((long) width * bitDepth * filterBytes + 7) >> 3);
+        }
+    }
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final Format format;
+    private final int rowBytes;
+    private final Deflater deflater;
+    private final IdatStream idat;
+    private final DeflaterOutputStream compressed;
+    private byte[] row;
+    private byte[] prior;
+    private final byte[][] candidates;
+    private final boolean adaptive;
+    private int rowsWritten;
+
+    public PngWriter(OutputStream out, int width, int height, Format format) throws IOException {
+        this(out, width, height, format, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public PngWriter(OutputStream out, int width, int height, Format format, int compressionLevel) throws IOException {
+        if (format != Format.RGB && format != Format.BILEVEL) {
+            throw new IllegalArgumentException("Rows can only be streamed as RGB or BILEVEL, not " + format);
+        }
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.rowBytes = format.rowBytes(width);
+        this.row = new byte[rowBytes];
+        this.prior = new byte[rowBytes];
+        this.candidates = filterCandidates(rowBytes);
+        this.adaptive = adaptiveFiltering(compressionLevel);
+
+        writeHeader(this.out, width, height, format);
+
+        this.deflater = new Deflater(compressionLevel);
+        this.idat = new IdatStream(this.out);
+        this.compressed = new DeflaterOutputStream(idat, deflater, CHUNK_SIZE);
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    // Writes rows of packed 0xRRGGBB pixels (alpha ignored) starting at offset, with a stride of width
+    public void writeRgbRows(int[] pixels, int offset, int rows) throws IOException {
+        checkFormat(Format.RGB);
+        for (int r = 0; r < rows; r++) {
+            for (int x = 0, i = offset + r * width, j = 0; x < width; x++, i++, j += 3) {
+                int rgb = pixels[i];
+                row[j] = (byte) (rgb >> 16);
+                row[j + 1] = (byte) (rgb >> 8);
+                row[j + 2] = (byte) rgb;
+            }
+            writeRow();
+        }
+    }
+
+    // Writes row y of the mask
+    public void writeMaskRow(BitMask mask, int y) throws IOException {
+        checkFormat(Format.BILEVEL);
+        if (mask.width() != width) {
+            throw new IllegalArgumentException("Mask width " + mask.width() + " does not match " + width);
+        }
+        long[] words = mask.words();
+        int rowStart = y * mask.wordsPerRow();
+        for (int j = 0; j < rowBytes; j++) {
+            // BitMask stores the left-most pixel in the lowest bit, PNG in the highest
+            int bits = (int) (words[rowStart + (j >> 3)] >>> ((j & 7) << 3)) & 0xFF;
+            row[j] = (byte) (Integer.reverse(bits) >>> 24);
+        }
+        writeRow();
+    }
+
+    // Ends the image data and writes the trailer; does not close the underlying stream
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Wrote " + rowsWritten + " of " + height + " rows");
+        }
+        try {
+            compressed.finish();
+            idat.flushChunk();
+        } finally {
+            deflater.end();
+        }
+        writeChunk(out, "IEND", new byte[0], 0, 0);
+        out.flush();
+    }
+
+    private void checkFormat(Format expected) {
+        if (format != expected) {
+            throw new IllegalStateException("Writer was created for " + format + " rows");
+        }
+    }
+
+    private void writeRow() throws IOException {
+        if (rowsWritten == height) {
+            throw new IllegalStateException("All " + height + " rows are already written");
+        }
+        compressed.write(adaptive ? filterRow(row, prior, rowBytes, format.filterBytes, candidates)
+                : filterUp(row, prior, rowBytes, candidates));
+        byte[] recycled = prior;
+        prior = row;
+        row = recycled;
+        rowsWritten++;
+    }
+
+    // Signature and IHDR; the image data must follow as IDAT chunks
+    static void writeHeader(DataOutputStream out, int width, int height, Format format) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("PNG size must be positive: " + width + "x" + height);
+        }
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = (byte) format.bitDepth;
+        header[9] = (byte) format.colorType;
+        writeChunk(out, "IHDR", header, 0, header.length);
+    }
+
+    // Scratch rows for filterRow, each starting with its filter type byte
+    static byte[][] filterCandidates(int rowBytes) {
+        byte[][] candidates = new byte[5][rowBytes + 1];
+        for (int f = 0; f < candidates.length; f++) {
+            candidates[f][0] = (byte) f;
+        }
+        return candidates;
+    }
+
+    static boolean adaptiveFiltering(int compressionLevel) {
+        return compressionLevel < 0 || compressionLevel > FAST_FILTER_LEVEL;
+    }
+
+    // The row under the Up filter, in candidates[2]
+    static byte[] filterUp(byte[] row, byte[] prior, int rowBytes, byte[][] candidates) {
+        byte[] up = candidates[2];
+        for (int j = 0; j < rowBytes; j++) {
+            up[j + 1] = (byte) (row[j] - prior[j]);
+        }
+        return up;
+    }
+
+    // Tries all five PNG filters and keeps the one with the smallest sum of absolute residuals,
+    // the usual heuristic (libpng's default). prior is the unfiltered row above, zeros for the
+    // first row. Returns one of the candidates, filter type byte first.
+    static byte[] filterRow(byte[] row, byte[] prior, int rowBytes, int bpp, byte[][] candidates) {
+        byte[] none = candidates[0], sub = candidates[1], up = candidates[2], average = candidates[3], paeth = candidates[4];
+        long[] cost = new long[5];
+        for (int j = 0; j < rowBytes; j++) {
+            int x = row[j] & 0xFF;
+            int a = j >= bpp ? row[j - bpp] & 0xFF : 0;
+            int b = prior[j] & 0xFF;
+            int c = j >= bpp ? prior[j - bpp] & 0xFF : 0;
+            none[j + 1] = (byte) x;
+            sub[j + 1] = (byte) (x - a);
+            up[j + 1] = (byte) (x - b);
+            average[j + 1] = (byte) (x - ((a + b) >> 1));
+            paeth[j + 1] = (byte) (x - paethPredictor(a, b, c));
+            for (int f = 0; f < 5; f++) {
+                cost[f] += Math.abs(candidates[f][j + 1]);
+            }
+        }
+        int best = 0;
+        for (int f = 1; f < 5; f++) {
+            if (cost[f] < cost[best]) {
+                best = f;
+            }
+        }
+        return candidates[best];
+    }
+
+    static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] name = {(byte) type.charAt(0), (byte) type.charAt(1), (byte) type.charAt(2), (byte) type.charAt(3)};
+        crc.update(name);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    static void putInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    // Cuts the compressed stream into IDAT chunks
+    private static final class IdatStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count;
+
+        IdatStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    flushChunk();
+                }
+                int n = Math.min(length, buffer.length - count);
+                System.arraycopy(data, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        // Only called once the stream is finished: an early flush would just produce a short chunk
+        void flushChunk() throws IOException {
+            if (count > 0) {
+                writeChunk(out, "IDAT", buffer, 0, count);
+                count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,453 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Server mode: the processing engine behind a local HTTP endpoint. Requests run on a bounded pool of
+// platform threads, not one virtual thread each: the JDK server's streams synchronize on every read
+// and write, which pins a virtual thread to its carrier, so one slow client could stall the rest.
+//   POST /hsb?hue=H&saturation=S&brightness=B   image body -> adjusted PNG
+//   POST /outline[?format=json]                 image body -> outlined PNG, or the contours as JSON
+//   GET  /metrics                                StageMetrics snapshot, including per-endpoint latency
+// Admission control keeps a burst from exhausting the machine: CPU permits bound the requests
+// processing at once, and a byte budget, estimated from the body, the image header and what each
+// endpoint holds per pixel, bounds their memory. A request that cannot get both soon gets 429.
+// Bodies are read before either budget is consulted, so the request pool and a deadline on reading
+// the request are what bound slow uploaders: beyond the pool and its queue a connection is closed
+// unanswered. Replies are encoded into memory first, so a slow client only holds its encoded bytes,
+// never a CPU permit.
+public class ProcessingServer {
+    // Bytes per pixel each endpoint holds at its peak, the decoded image included:
+    // decoded 4 + packed int copy of other layouts 4 + result 4 + encoded PNG with buffer growth 4
+    private static final int HSB_BYTES_PER_PIXEL = 16;
+    // decoded 4 + packed int copy 4 + gray copy 1 + labels 4 + two bit masks 1, then the result 4 and
+    // the encoded PNG 4 unless only the contours are asked for
+    private static final int OUTLINE_BYTES_PER_PIXEL = 22;
+    private static final int CONTOURS_BYTES_PER_PIXEL = 14;
+
+    static final class Options {
+        String host = "127.0.0.1";
+        int port = 8080;
+        int cpuPermits = ComputePool.getParallelism();
+        long memoryBudgetBytes = Runtime.getRuntime().maxMemory() / 2;
+        // How long a request may wait for a CPU permit before it is turned away
+        long queueMillis = 250;
+        // Threads serving requests, and requests waiting for one; connections beyond both are closed
+        int requestThreads = 32;
+        int requestQueue = 64;
+        // Time from a request starting to arrive, queueing for a thread included, to its whole body
+        // being read, after which the connection is dropped; a stalled upload cannot hold a thread
+        int requestTimeoutSeconds = 30;
+        // Time from reading a request's body to the end of its reply, processing included, after which
+        // the connection is dropped; a client that stops reading cannot keep it open forever
+        int responseTimeoutSeconds = 120;
+        ImageExporter.Settings export = ImageExporter.Settings.defaults().withCompressionLevel(1);
+    }
+
+    private final Options options;
+    private final Semaphore cpu;
+    // In KB, so large budgets still fit the semaphore's int permits
+    private final Semaphore memory;
+    private final int memoryUnits;
+    private HttpServer server;
+    private ThreadPoolExecutor executor;
+
+    ProcessingServer(Options options) {
+        this.options = options;
+        this.cpu = new Semaphore(Math.max(1, options.cpuPermits));
+        this.memoryUnits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, options.memoryBudgetBytes >> 10));
+        this.memory = new Semaphore(memoryUnits);
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        Options options = CliOptions.parseOrExit(args, ProcessingServer::parse, ProcessingServer::printUsage);
+        ProcessingServer server = new ProcessingServer(options);
+        try {
+            int port = server.start();
+            System.out.println("Listening on http://" + options.host + ":" + port);
+        } catch (IOException e) {
+            System.err.println("Cannot start server: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Binds and starts serving; returns the port, which port 0 leaves to the system
+    public synchronized int start() throws IOException {
+        // Read once per JVM when the first server is created; an explicit -D setting wins
+        if (System.getProperty("sun.net.httpserver.maxReqTime") == null) {
+            System.setProperty("sun.net.httpserver.maxReqTime", Integer.toString(options.requestTimeoutSeconds));
+        }
+        if (System.getProperty("sun.net.httpserver.maxRspTime") == null) {
+            System.setProperty("sun.net.httpserver.maxRspTime", Integer.toString(options.responseTimeoutSeconds));
+        }
+        server = HttpServer.create(new InetSocketAddress(options.host, options.port), 0);
+        // A full pool and queue reject the exchange, and the JDK server then closes its connection
+        executor = new ThreadPoolExecutor(options.requestThreads, options.requestThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(options.requestQueue), Thread.ofPlatform().name("server-request-", 0).factory(),
+                (exchange, pool) -> {
+                    StageMetrics.increment("server.rejected");
+                    throw new RejectedExecutionException("Request pool and queue are full");
+                });
+        executor.allowCoreThreadTimeOut(true);
+        server.setExecutor(executor);
+        server.createContext("/hsb", exchange -> handle(exchange, "hsb", this::hsb));
+        server.createContext("/outline", exchange -> handle(exchange, "outline", this::outline));
+        server.createContext("/metrics", exchange -> handle(exchange, "metrics", this::metrics));
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    public synchronized void stop(int delaySeconds) {
+        if (server != null) {
+            server.stop(delaySeconds);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    private interface Endpoint {
+        void serve(HttpExchange exchange, Map<String, String> query) throws IOException;
+    }
+
+    // A response to send instead of the endpoint's own
+    private static final class HttpError extends RuntimeException {
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void handle(HttpExchange exchange, String name, Endpoint endpoint) {
+        long start = System.nanoTime();
+        StageMetrics.increment("server." + name + ".requests");
+        try (exchange) {
+            try {
+                endpoint.serve(exchange, query(exchange));
+                StageMetrics.recordNanos("server." + name, System.nanoTime() - start);
+            } catch (HttpError e) {
+                StageMetrics.increment("server." + name + ".status." + e.status);
+                if (e.status == 429) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                }
+                sendText(exchange, e.status, e.getMessage());
+            } catch (IOException | RuntimeException e) {
+                StageMetrics.increment("server." + name + ".status.500");
+                System.err.println("Request to /" + name + " failed: " + e);
+                sendText(exchange, 500, "Processing failed: " + e.getMessage());
+            }
+        } catch (IOException e) {
+            // The client went away; nothing left to tell it
+        }
+    }
+
+    private void hsb(HttpExchange exchange, Map<String, String> query) throws IOException {
+        requireMethod(exchange, "POST");
+        int hue = intParameter(query, "hue", 0);
+        int saturation = intParameter(query, "saturation", 100);
+        int brightness = intParameter(query, "brightness", 100);
+        processImage(exchange, HSB_BYTES_PER_PIXEL, image -> {
+            ImageProcessor processor = new ImageProcessor(image);
+            BufferedImage result = BufferPool.shared().lease(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            try {
+                processor.render(hue, saturation, brightness, null, result, () -> false);
+                return pngReply(result);
+            } finally {
+                BufferPool.shared().release(result);
+                processor.release();
+            }
+        });
+    }
+
+    private void outline(HttpExchange exchange, Map<String, String> query) throws IOException {
+        requireMethod(exchange, "POST");
+        String format = query.getOrDefault("format", "png");
+        if (!format.equals("png") && !format.equals("json")) {
+            throw new HttpError(400, "format must be png or json");
+        }
+        boolean json = format.equals("json");
+        processImage(exchange, json ? CONTOURS_BYTES_PER_PIXEL : OUTLINE_BYTES_PER_PIXEL, image -> {
+            List<Contour> contours = ObjectOutline.findContours(image);
+            if (json) {
+                return contoursReply(image, contours);
+            }
+            // Same picture ObjectOutline.detectObjects draws, without finding the contours twice.
+            // Leased, so requests for same-sized images reuse it once it is encoded.
+            BufferedImage result = BufferPool.shared().lease(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            try {
+                return pngReply(ObjectOutline.drawContours(image, contours, result));
+            } finally {
+                BufferPool.shared().release(result);
+            }
+        });
+    }
+
+    private void metrics(HttpExchange exchange, Map<String, String> query) throws IOException {
+        requireMethod(exchange, "GET");
+        byte[] json = StageMetrics.snapshotJson().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, json.length);
+        exchange.getResponseBody().write(json);
+    }
+
+    private interface Processing {
+        // Runs with a CPU permit held and returns the encoded response
+        Reply process(BufferedImage image) throws IOException;
+    }
+
+    private record Reply(String contentType, ByteArrayOutputStream body) {
+    }
+
+    // Reads and decodes the body within the budgets, then processes and encodes it with a CPU permit.
+    // The permit and all but the encoded reply's share of the memory go back before the reply is
+    // written, so a client that reads slowly holds no more than its own bytes.
+    private void processImage(HttpExchange exchange, int bytesPerPixel, Processing processing) throws IOException {
+        long length = contentLength(exchange);
+        int held = reserve(length);
+        try {
+            byte[] body = readBody(exchange.getRequestBody(), length);
+            long[] size = imageSize(body);
+            held += reserve(size[0] * size[1] * bytesPerPixel);
+            Reply reply;
+            acquireCpu();
+            try {
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(body));
+                if (image == null) {
+                    throw new HttpError(415, "Unsupported image format");
+                }
+                body = null; // Decoded, so the encoded bytes can go
+                reply = processing.process(image);
+            } finally {
+                cpu.release();
+            }
+            int replyUnits = (int) Math.min(held, units(reply.body().size()));
+            memory.release(held - replyUnits);
+            held = replyUnits;
+            exchange.getResponseHeaders().set("Content-Type", reply.contentType());
+            exchange.sendResponseHeaders(200, reply.body().size());
+            reply.body().writeTo(exchange.getResponseBody());
+        } finally {
+            memory.release(held);
+        }
+    }
+
+    private static long units(long bytes) {
+        return Math.max(1, (bytes + 1023) >> 10);
+    }
+
+    // Takes part of the byte budget without waiting: a full budget means the server is overloaded
+    private int reserve(long bytes) {
+        long units = units(bytes);
+        if (units > memoryUnits) {
+            throw new HttpError(413, "Image too large for the server's memory budget");
+        }
+        if (!memory.tryAcquire((int) units)) {
+            throw new HttpError(429, "Too much work in flight, try again later");
+        }
+        return (int) units;
+    }
+
+    private void acquireCpu() {
+        try {
+            if (!cpu.tryAcquire(options.queueMillis, TimeUnit.MILLISECONDS)) {
+                throw new HttpError(429, "All processing slots are busy, try again later");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpError(503, "Server is shutting down");
+        }
+    }
+
+    private static long contentLength(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (header == null) {
+            throw new HttpError(411, "Content-Length is required");
+        }
+        try {
+            long length = Long.parseLong(header.trim());
+            if (length <= 0) {
+                throw new HttpError(400, "Empty request body");
+            }
+            return length;
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, "Invalid Content-Length: " + header);
+        }
+    }
+
+    private static byte[] readBody(InputStream in, long length) throws IOException {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new HttpError(413, "Request body too large");
+        }
+        byte[] body = in.readNBytes((int) length);
+        if (body.length < length) {
+            throw new HttpError(400, "Request body shorter than its Content-Length");
+        }
+        return body;
+    }
+
+    // Width and height from the header without decoding the pixels
+    private static long[] imageSize(byte[] body) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(body))) {
+            Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+            if (readers == null || !readers.hasNext()) {
+                throw new HttpError(415, "Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                return new long[]{reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private Reply pngReply(BufferedImage image) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageExporter.writePng(image, png, options.export);
+        return new Reply("image/png", png);
+    }
+
+    // {"width":W,"height":H,"contours":[[[x,y],...],...]}
+    private static Reply contoursReply(BufferedImage image, List<Contour> contours) throws IOException {
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        Writer out = new BufferedWriter(new OutputStreamWriter(json, StandardCharsets.UTF_8));
+        out.append("{\"width\":").append(Integer.toString(image.getWidth()))
+                .append(",\"height\":").append(Integer.toString(image.getHeight()))
+                .append(",\"contours\":[");
+        for (int i = 0; i < contours.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            contours.get(i).writeJson(out);
+        }
+        out.append("]}");
+        out.flush();
+        return new Reply("application/json", json);
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] text = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, text.length);
+        exchange.getResponseBody().write(text);
+    }
+
+    private static void requireMethod(HttpExchange exchange, String method) {
+        if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+            exchange.getResponseHeaders().set("Allow", method);
+            throw new HttpError(405, "Use " + method);
+        }
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> parameters = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) {
+            return parameters;
+        }
+        for (String pair : raw.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            try {
+                parameters.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                throw new HttpError(400, "Malformed query: " + raw);
+            }
+        }
+        return parameters;
+    }
+
+    private static int intParameter(Map<String, String> query, String name, int defaultValue) {
+        String value = query.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, "Not a number for " + name + ": " + value);
+        }
+    }
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--host":
+                    options.host = CliOptions.value(args, ++i, arg);
+                    break;
+                case "--port":
+                    options.port = CliOptions.intValue(args, ++i, arg);
+                    if (options.port < 0 || options.port > 65535) {
+                        throw new IllegalArgumentException("Port must be 0 to 65535: " + options.port);
+                    }
+                    break;
+                case "--cpu-permits":
+                    options.cpuPermits = Math.max(1, CliOptions.intValue(args, ++i, arg));
+                    break;
+                case "--memory-mb":
+                    options.memoryBudgetBytes = CliOptions.megabytes(args, ++i, arg);
+                    break;
+                case "--queue-ms":
+                    options.queueMillis = Math.max(0, CliOptions.intValue(args, ++i, arg));
+                    break;
+                case "--request-threads":
+                    options.requestThreads = Math.max(1, CliOptions.intValue(args, ++i, arg));
+                    break;
+                case "--request-queue":
+                    options.requestQueue = Math.max(1, CliOptions.intValue(args, ++i, arg));
+                    break;
+                case "--request-timeout-s":
+                    options.requestTimeoutSeconds = Math.max(1, CliOptions.intValue(args, ++i, arg));
+                    break;
+                case "--response-timeout-s":
+                    options.responseTimeoutSeconds = Math.max(1, CliOptions.intValue(args, ++i, arg));
+                    break;
+                case "--compression":
+                    options.export = options.export.withCompressionLevel(CliOptions.compressionLevel(args, ++i, arg));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return options;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: ProcessingServer [--host ADDR] [--port N]   defaults 127.0.0.1:8080, port 0 picks one");
+        System.err.println("       [--cpu-permits N]   requests processed at once, default one per pool thread");
+        System.err.println("       [--memory-mb MB]    budget for request bodies and decoded images");
+        System.err.println("       [--queue-ms MS]     wait for a processing slot before answering 429");
+        System.err.println("       [--request-threads N] [--request-queue N]  default 32 and 64, connections beyond are closed");
+        System.err.println("       [--request-timeout-s S]   drop requests whose body is not read within S seconds, default 30");
+        System.err.println("       [--response-timeout-s S]  drop requests not fully answered S seconds after their body, default 120");
+        System.err.println("       [--compression 0-9]");
+    }
+}
@@ -0,0 +1,152 @@
+import javax.swing.*;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+// Renders off the EDT with latest-wins semantics: a new request replaces any request that has not
+// started yet and cancels the one in flight, and only the newest finished frame is published on the EDT.
+public class RenderScheduler<T> {
+    private static final int LATENCY_SAMPLES = 256;
+
+    // A render job; it should poll cancelled regularly and return null once it reports true
+    public interface Renderer<T> {
+        T render(BooleanSupplier cancelled);
+    }
+
+    // Counters and event-to-screen latency over the most recent frames
+    public record Metrics(long submitted, long coalesced, long cancelled, long published,
+                          double lastLatencyMillis, double meanLatencyMillis,
+                          double p50LatencyMillis, double p95LatencyMillis, double maxLatencyMillis) {
+        @Override
+        public String toString() {
+            return String.format("submitted=%d coalesced=%d cancelled=%d published=%d latency last=%.1fms mean=%.1fms p50=%.1fms p95=%.1fms max=%.1fms",
+                    submitted, coalesced, cancelled, published, lastLatencyMillis, meanLatencyMillis,
+                    p50LatencyMillis, p95LatencyMillis, maxLatencyMillis);
+        }
+    }
+
+    private record Request<T>(long generation, long submittedNanos, Renderer<T> renderer) {
+    }
+
+    private final Consumer<T> publisher;
+    private final Consumer<T> discarder;
+    private final ExecutorService worker;
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicReference<Request<T>> pending = new AtomicReference<>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount;
+    private long lastPublishedGeneration;
+
+    // publisher is always called on the EDT
+    public RenderScheduler(String name, Consumer<T> publisher) {
+        this(name, publisher, frame -> {
+        });
+    }
+
+    // discarder gets every finished frame that is never published, because it went stale or a newer
+    // one got there first, so frames holding leased buffers can give them back. It runs on the render
+    // thread or the EDT, whichever dropped the frame.
+    public RenderScheduler(String name, Consumer<T> publisher, Consumer<T> discarder) {
+        this.publisher = publisher;
+        this.discarder = discarder;
+        this.worker = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void submit(Renderer<T> renderer) {
+        submitted.incrementAndGet();
+        Request<T> request = new Request<>(generation.incrementAndGet(), System.nanoTime(), renderer);
+        if (pending.getAndSet(request) != null) {
+            coalesced.incrementAndGet(); // The older request never started
+        } else {
+            worker.execute(this::drain);
+        }
+    }
+
+    // Drops anything queued and makes the render in flight stale
+    public void cancel() {
+        generation.incrementAndGet();
+        if (pending.getAndSet(null) != null) {
+            coalesced.incrementAndGet();
+        }
+    }
+
+    public void shutdown() {
+        cancel();
+        worker.shutdownNow();
+    }
+
+    private void drain() {
+        Request<T> request = pending.getAndSet(null);
+        if (request == null) {
+            return;
+        }
+        BooleanSupplier stale = () -> generation.get() != request.generation();
+        T frame = null;
+        try {
+            frame = request.renderer().render(stale);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        if (frame == null || stale.getAsBoolean()) {
+            cancelled.incrementAndGet();
+            if (frame != null) {
+                discarder.accept(frame);
+            }
+            return;
+        }
+        T result = frame;
+        SwingUtilities.invokeLater(() -> publish(request, result));
+    }
+
+    private void publish(Request<T> request, T frame) {
+        if (request.generation() < lastPublishedGeneration) {
+            discarder.accept(frame);
+            return;
+        }
+        lastPublishedGeneration = request.generation();
+        publisher.accept(frame);
+        published.incrementAndGet();
+        // The repaint triggered by the publisher is already queued, so this runs once the pixels are painted
+        SwingUtilities.invokeLater(() -> recordLatency(System.nanoTime() - request.submittedNanos()));
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        latencies[latencyCount % LATENCY_SAMPLES] = nanos;
+        latencyCount++;
+    }
+
+    public synchronized Metrics getMetrics() {
+        int count = Math.min(latencyCount, LATENCY_SAMPLES);
+        long[] samples = Arrays.copyOf(latencies, count);
+        Arrays.sort(samples);
+        double last = latencyCount == 0 ? 0 : millis(latencies[(latencyCount - 1) % LATENCY_SAMPLES]);
+        double mean = count == 0 ? 0 : millis(Arrays.stream(samples).sum()) / count;
+        return new Metrics(submitted.get(), coalesced.get(), cancelled.get(), published.get(),
+                last, mean, percentile(samples, 0.50), percentile(samples, 0.95),
+                count == 0 ? 0 : millis(samples[count - 1]));
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return millis(sorted[(int) Math.min(sorted.length - 1, Math.round(fraction * (sorted.length - 1)))]);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
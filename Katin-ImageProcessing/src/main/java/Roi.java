@@ -0,0 +1,133 @@
+import java.awt.Rectangle;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The part of an image an edit applies to: a rectangle, or any shape given as a BitMask the size of
+// the image. Work is limited to bounds(), and a mask then decides pixel by pixel. Immutable, with a
+// stable toString(), so operations holding one still work as EditPipeline cache keys.
+public final class Roi {
+    private static final AtomicLong maskIds = new AtomicLong();
+
+    private final Rectangle bounds;
+    private final BitMask mask;
+    // Masks are told apart by instance: hashing every bit for each cache key would cost more than it saves
+    private final long maskId;
+
+    // Pixels [startX, endX) of row y are inside the ROI
+    public interface SpanTask {
+        void run(int y, int startX, int endX);
+    }
+
+    private Roi(Rectangle bounds, BitMask mask, long maskId) {
+        this.bounds = bounds;
+        this.mask = mask;
+        this.maskId = maskId;
+    }
+
+    // The rectangle clipped to a width x height image; may end up empty
+    public static Roi rectangle(Rectangle region, int width, int height) {
+        Rectangle clipped = region.intersection(new Rectangle(0, 0, width, height));
+        return new Roi(clipped.isEmpty() ? new Rectangle() : clipped, null, 0);
+    }
+
+    // The set pixels of a mask the size of the image. The mask is copied.
+    public static Roi mask(BitMask mask) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+        for (int y = 0; y < mask.height(); y++) {
+            for (int x = mask.nextSetBit(y, 0); x >= 0; x = mask.nextSetBit(y, x)) {
+                int end = mask.nextClearBit(y, x);
+                minX = Math.min(minX, x);
+                maxX = Math.max(maxX, end - 1);
+                minY = Math.min(minY, y);
+                maxY = y;
+                x = end;
+            }
+        }
+        Rectangle bounds = maxY < 0 ? new Rectangle() : new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        return new Roi(bounds, mask.copy(), maskIds.incrementAndGet());
+    }
+
+    public Rectangle bounds() {
+        return new Rectangle(bounds);
+    }
+
+    public boolean isEmpty() {
+        return bounds.isEmpty();
+    }
+
+    public boolean isRectangle() {
+        return mask == null;
+    }
+
+    public boolean contains(int x, int y) {
+        return bounds.contains(x, y) && (mask == null || mask.get(x, y));
+    }
+
+    // Calls task for every run of ROI pixels in rows [startRow, endRow), left to right
+    public void forEachSpan(int startRow, int endRow, SpanTask task) {
+        int right = bounds.x + bounds.width;
+        for (int y = Math.max(startRow, bounds.y); y < Math.min(endRow, bounds.y + bounds.height); y++) {
+            if (mask == null) {
+                task.run(y, bounds.x, right);
+                continue;
+            }
+            for (int x = mask.nextSetBit(y, bounds.x); x >= 0 && x < right; x = mask.nextSetBit(y, x)) {
+                int end = Math.min(right, mask.nextClearBit(y, x));
+                task.run(y, x, end);
+                x = end;
+            }
+        }
+    }
+
+    // Clears the pixels of a bounds-sized mask, aligned with the top-left corner of bounds(), that
+    // fall outside the ROI. A rectangle leaves it as it is. Returns the mask.
+    public BitMask clip(BitMask local) {
+        if (mask == null) {
+            return local;
+        }
+        BitMask inside = new BitMask(bounds.width, bounds.height);
+        forEachSpan(bounds.y, bounds.y + bounds.height, (y, startX, endX) -> {
+            for (int x = startX; x < endX; x++) {
+                inside.set(x - bounds.x, y - bounds.y);
+            }
+        });
+        return local.and(inside);
+    }
+
+    // The same region on a copy of the image scaled to width x height, e.g. a display-sized proxy
+    public Roi scaled(int sourceWidth, int sourceHeight, int width, int height) {
+        double sx = (double) width / sourceWidth;
+        double sy = (double) height / sourceHeight;
+        Rectangle area = new Rectangle((int) Math.floor(bounds.x * sx), (int) Math.floor(bounds.y * sy), 0, 0);
+        area.add((int) Math.ceil((bounds.x + bounds.width) * sx), (int) Math.ceil((bounds.y + bounds.height) * sy));
+        if (mask == null) {
+            return rectangle(area, width, height);
+        }
+        // Nearest neighbour is plenty for a preview
+        BitMask result = new BitMask(width, height);
+        for (int y = Math.max(0, area.y); y < Math.min(height, area.y + area.height); y++) {
+            int sourceY = Math.min(sourceHeight - 1, (int) (y / sy));
+            for (int x = Math.max(0, area.x); x < Math.min(width, area.x + area.width); x++) {
+                if (mask.get(Math.min(sourceWidth - 1, (int) (x / sx)), sourceY)) {
+                    result.set(x, y);
+                }
+            }
+        }
+        return mask(result);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Roi roi && roi.maskId == maskId && roi.bounds.equals(bounds);
+    }
+
+    @Override
+    public int hashCode() {
+        return bounds.hashCode() * 31 + Long.hashCode(maskId);
+    }
+
+    @Override
+    public String toString() {
+        String area = bounds.x + "," + bounds.y + " " + bounds.width + "x" + bounds.height;
+        return mask == null ? "Roi[" + area + "]" : "Roi[mask " + maskId + " " + area + "]";
+    }
+}
@@ -0,0 +1,552 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Sequence mode: the HSB adjustment or outline detection over every frame of a numbered image
+// directory or an animated GIF. Decode, process and encode are separate stages on their own threads,
+// joined by bounded queues, so they overlap while a full queue holds back the stage feeding it.
+// Several frames are processed at once and may finish out of order; the encoder puts them back in
+// sequence, so the frames written so far are always a complete prefix. Frame buffers come from the
+// shared BufferPool, are handed back once a frame is written and reused by later frames of the same size.
+public class SequenceProcessor {
+    private static final Pattern LAST_NUMBER = Pattern.compile("(\\d+)(?!.*\\d)");
+
+    enum Operation { HSB, OUTLINE }
+
+    static final class Options {
+        File input;
+        File output;
+        Operation operation = Operation.HSB;
+        int hue = 0;
+        int saturation = 100;
+        int brightness = 100;
+        // Frames processed at once; each one is already spread over the compute pool
+        int workers = 2;
+        // Frames each queue between two stages holds
+        int queueCapacity = 4;
+        File metrics;
+        ImageExporter.Settings export = ImageExporter.Settings.defaults();
+    }
+
+    // A decoded or processed frame and its position in the sequence
+    private record Frame(int index, BufferedImage image) {
+    }
+
+    // Tells the next stage that no more frames follow
+    private static final Frame END = new Frame(-1, null);
+
+    private final Options options;
+    private final BufferPool buffers = BufferPool.shared();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private ColorTransform.Table table;
+    private int written;
+
+    SequenceProcessor(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        Options options = CliOptions.parseOrExit(args, SequenceProcessor::parse, SequenceProcessor::printUsage);
+        System.exit(new SequenceProcessor(options).run() ? 0 : 1);
+    }
+
+    // Returns whether every frame was written
+    boolean run() {
+        if (!options.output.isDirectory() && !options.output.mkdirs()) {
+            System.err.println("Cannot create output directory: " + options.output);
+            return false;
+        }
+        ExecutorService stages = Executors.newFixedThreadPool(1 + options.workers, CliOptions.daemon("sequence"));
+        BlockingQueue<Frame> decoded = new ArrayBlockingQueue<>(options.queueCapacity);
+        BlockingQueue<Frame> processed = new ArrayBlockingQueue<>(options.queueCapacity);
+        // Frames between decoding and writing, those waiting to be put back in order included.
+        // Bounds the reorder buffer, and with it the memory of the whole pipeline.
+        Semaphore window = new Semaphore(2 * options.queueCapacity + options.workers);
+        Thread writer = Thread.currentThread();
+        long start = System.nanoTime();
+        try (FrameSource source = open(options.input)) {
+            if (options.operation == Operation.HSB) {
+                table = ColorTransform.hsb(options.hue, options.saturation, options.brightness)
+                        .compile(ColorTransform.Accuracy.AUTO, source.pixelEstimate(), true);
+            }
+            stages.execute(stage(writer, () -> decode(source, decoded, window)));
+            for (int i = 0; i < options.workers; i++) {
+                stages.execute(stage(writer, () -> processFrames(decoded, processed)));
+            }
+            write(source, processed, window);
+        } catch (InterruptedException e) {
+            // A stage failed and stopped the writer, or the run itself was interrupted
+            failure.compareAndSet(null, e);
+        } catch (IOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            stages.shutdownNow();
+            if (table != null) {
+                table.release();
+            }
+        }
+        printReport(System.nanoTime() - start);
+        CliOptions.writeMetrics(options.metrics);
+        Throwable error = failure.get();
+        if (error != null) {
+            System.err.println("Stopped after " + written + " frames: " + error);
+            return false;
+        }
+        return true;
+    }
+
+    private interface StageTask {
+        void run() throws IOException, InterruptedException;
+    }
+
+    // Runs a stage; on failure the writer is interrupted so the whole run stops
+    private Runnable stage(Thread writer, StageTask task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (InterruptedException e) {
+                // Shut down after another stage failed
+            } catch (IOException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+                writer.interrupt();
+            }
+        };
+    }
+
+    // A frame that cannot be decoded ends the sequence there, after the frames before it are written
+    private void decode(FrameSource source, BlockingQueue<Frame> decoded, Semaphore window) throws InterruptedException {
+        for (int index = 0; ; index++) {
+            window.acquire();
+            long start = System.nanoTime();
+            BufferedImage image;
+            try {
+                image = source.next(buffers);
+            } catch (IOException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+                break;
+            }
+            if (image == null) {
+                break;
+            }
+            StageMetrics.recordNanos("sequence.decode", System.nanoTime() - start);
+            decoded.put(new Frame(index, image));
+        }
+        for (int i = 0; i < options.workers; i++) {
+            decoded.put(END);
+        }
+    }
+
+    private void processFrames(BlockingQueue<Frame> decoded, BlockingQueue<Frame> processed) throws InterruptedException {
+        while (true) {
+            Frame frame = decoded.take();
+            if (frame == END) {
+                processed.put(END);
+                return;
+            }
+            long start = System.nanoTime();
+            BufferedImage result = process(frame.image());
+            buffers.release(frame.image());
+            StageMetrics.recordNanos("sequence.process", System.nanoTime() - start);
+            processed.put(new Frame(frame.index(), result));
+        }
+    }
+
+    // Same result as BatchProcessor's operations, into a buffer from the pool
+    private BufferedImage process(BufferedImage frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        BufferedImage result = buffers.lease(width, height, BufferedImage.TYPE_INT_RGB);
+        if (options.operation == Operation.OUTLINE) {
+            return ObjectOutline.drawContours(frame, ObjectOutline.findContours(frame), result);
+        }
+        // The table is compiled once for the whole sequence
+        try (StageTimer timer = StageTimer.start("hsb", frame)) {
+            int[] source = PixelAccess.rgb(frame);
+            int[] target = PixelAccess.rgb(result);
+            ComputePool.forEachTile(height, ComputePool.tileRows(width),
+                    (startRow, endRow) -> table.apply(source, target, startRow * width, endRow * width));
+        }
+        return result;
+    }
+
+    // Writes the frames in sequence, holding back those that arrive early
+    private void write(FrameSource source, BlockingQueue<Frame> processed, Semaphore window)
+            throws IOException, InterruptedException {
+        Map<Integer, Frame> early = new HashMap<>();
+        int ended = 0;
+        while (ended < options.workers) {
+            Frame frame = processed.take();
+            if (frame == END) {
+                ended++;
+                continue;
+            }
+            early.put(frame.index(), frame);
+            for (Frame next = early.remove(written); next != null; next = early.remove(written)) {
+                long start = System.nanoTime();
+                ImageExporter.export(next.image(), new File(options.output, source.name(next.index()) + ".png"), options.export);
+                StageMetrics.recordNanos("sequence.encode", System.nanoTime() - start);
+                buffers.release(next.image());
+                window.release();
+                written++;
+            }
+        }
+    }
+
+    private void printReport(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf(Locale.ROOT, "Wrote %d frames in %.2f s, %.2f frames/s%n", written, seconds, written / seconds);
+        System.out.printf(Locale.ROOT, "Per frame: decode p50 %.1f ms, process p50 %.1f ms, encode p50 %.1f ms%n",
+                StageMetrics.histogram("sequence.decode").p50Millis(),
+                StageMetrics.histogram("sequence.process").p50Millis(),
+                StageMetrics.histogram("sequence.encode").p50Millis());
+        System.out.printf(Locale.ROOT, "Pooled buffers: %d allocated, %d reused%n",
+                StageMetrics.counter("pool.shared.allocated"), StageMetrics.counter("pool.shared.reused"));
+    }
+
+    // A GIF file is read as an animation, a directory as one frame per image file
+    static FrameSource open(File input) throws IOException {
+        if (input.isDirectory()) {
+            File[] files = input.listFiles(CliOptions::isImage);
+            if (files == null || files.length == 0) {
+                throw new IOException("No images in " + input);
+            }
+            Arrays.sort(files, SequenceProcessor::compareFrames);
+            return new NumberedFrames(List.of(files));
+        }
+        if (CliOptions.extension(input).equals("gif")) {
+            return new GifFrames(input);
+        }
+        throw new IOException("Input must be a directory of frames or a GIF: " + input);
+    }
+
+    // By the last number in the name, so frame9 comes before frame10; then by name
+    static int compareFrames(File a, File b) {
+        Matcher ma = LAST_NUMBER.matcher(a.getName());
+        Matcher mb = LAST_NUMBER.matcher(b.getName());
+        if (ma.find() && mb.find()) {
+            int prefix = a.getName().substring(0, ma.start()).compareTo(b.getName().substring(0, mb.start()));
+            if (prefix != 0) {
+                return prefix;
+            }
+            String na = ma.group(1).replaceFirst("^0+(?=.)", "");
+            String nb = mb.group(1).replaceFirst("^0+(?=.)", "");
+            int number = na.length() != nb.length() ? Integer.compare(na.length(), nb.length()) : na.compareTo(nb);
+            if (number != 0) {
+                return number;
+            }
+        }
+        return a.getName().compareTo(b.getName());
+    }
+
+    // Frames in order, decoded into pooled buffers where the format allows
+    interface FrameSource extends AutoCloseable {
+        // The next frame, or null after the last one
+        BufferedImage next(BufferPool buffers) throws IOException;
+
+        // Output file name for a frame, without extension
+        String name(int index);
+
+        // Roughly the pixels of the whole sequence, to pick the HSB table
+        long pixelEstimate();
+
+        @Override
+        void close() throws IOException;
+    }
+
+    // One frame per file, each decoded straight into a reused int buffer when the reader offers that layout
+    static final class NumberedFrames implements FrameSource {
+        private final List<File> files;
+        private int next;
+
+        NumberedFrames(List<File> files) {
+            this.files = files;
+        }
+
+        @Override
+        public BufferedImage next(BufferPool buffers) throws IOException {
+            if (next >= files.size()) {
+                return null;
+            }
+            File file = files.get(next++);
+            try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+                ImageReader reader = reader(stream, file);
+                try {
+                    int width = reader.getWidth(0);
+                    int height = reader.getHeight(0);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    int type = intLayout(reader);
+                    BufferedImage destination = type < 0 ? null : buffers.lease(width, height, type);
+                    param.setDestination(destination);
+                    try {
+                        return reader.read(0, param);
+                    } catch (IOException | RuntimeException e) {
+                        buffers.release(destination);
+                        throw e;
+                    }
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+
+        // TYPE_INT_RGB or TYPE_INT_ARGB if the reader can decode into it, which the processing
+        // stages then read in place; -1 to let the reader choose
+        private static int intLayout(ImageReader reader) throws IOException {
+            int found = -1;
+            for (Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0); types.hasNext(); ) {
+                int type = types.next().getBufferedImageType();
+                if (type == BufferedImage.TYPE_INT_RGB) {
+                    return type;
+                }
+                if (type == BufferedImage.TYPE_INT_ARGB) {
+                    found = type;
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public String name(int index) {
+            return CliOptions.baseName(files.get(index));
+        }
+
+        @Override
+        public long pixelEstimate() {
+            try (ImageInputStream stream = ImageIO.createImageInputStream(files.get(0))) {
+                ImageReader reader = reader(stream, files.get(0));
+                try {
+                    return (long) reader.getWidth(0) * reader.getHeight(0) * files.size();
+                } finally {
+                    reader.dispose();
+                }
+            } catch (IOException e) {
+                return 0; // The decode reports the problem
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // The frames of an animated GIF as they appear on screen: each one is drawn over the previous at
+    // its offset, after the previous frame's disposal method has been applied
+    static final class GifFrames implements FrameSource {
+        private static final String IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+        private static final String STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+
+        private final String baseName;
+        private final ImageInputStream stream;
+        private final ImageReader reader;
+        private final int count;
+        private final BufferedImage canvas;
+        private final int[] canvasPixels;
+        private int next;
+        // What to undo before drawing the next frame
+        private Rectangle previousArea;
+        private String previousDisposal = "none";
+        private int[] savedPixels;
+
+        GifFrames(File file) throws IOException {
+            this.baseName = CliOptions.baseName(file);
+            this.stream = ImageIO.createImageInputStream(file);
+            ImageReader gifReader = null;
+            try {
+                gifReader = reader(stream, file);
+                this.count = gifReader.getNumImages(true);
+                int[] size = screenSize(gifReader);
+                this.canvas = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_ARGB);
+                this.canvasPixels = PixelAccess.argb(canvas);
+                this.reader = gifReader;
+            } catch (IOException | RuntimeException e) {
+                if (gifReader != null) {
+                    gifReader.dispose();
+                }
+                if (stream != null) {
+                    stream.close();
+                }
+                throw e;
+            }
+        }
+
+        // The logical screen from the stream header, or the first frame's size if it has none
+        private static int[] screenSize(ImageReader reader) throws IOException {
+            if (reader.getStreamMetadata() != null) {
+                IIOMetadataNode root = (IIOMetadataNode) reader.getStreamMetadata().getAsTree(STREAM_FORMAT);
+                IIOMetadataNode screen = child(root, "LogicalScreenDescriptor");
+                if (screen != null) {
+                    int width = Integer.parseInt(screen.getAttribute("logicalScreenWidth"));
+                    int height = Integer.parseInt(screen.getAttribute("logicalScreenHeight"));
+                    if (width > 0 && height > 0) {
+                        return new int[]{width, height};
+                    }
+                }
+            }
+            return new int[]{reader.getWidth(0), reader.getHeight(0)};
+        }
+
+        @Override
+        public BufferedImage next(BufferPool buffers) throws IOException {
+            if (next >= count) {
+                return null;
+            }
+            // The raw frames have a palette each, so they are decoded as they come; only the
+            // full-size frames handed downstream are pooled
+            BufferedImage raw = reader.read(next);
+            IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(next).getAsTree(IMAGE_FORMAT);
+            next++;
+            IIOMetadataNode descriptor = child(root, "ImageDescriptor");
+            IIOMetadataNode control = child(root, "GraphicControlExtension");
+            int left = descriptor == null ? 0 : Integer.parseInt(descriptor.getAttribute("imageLeftPosition"));
+            int top = descriptor == null ? 0 : Integer.parseInt(descriptor.getAttribute("imageTopPosition"));
+            String disposal = control == null ? "none" : control.getAttribute("disposalMethod");
+
+            dispose();
+            if (disposal.equals("restoreToPrevious")) {
+                savedPixels = savedPixels == null ? canvasPixels.clone() : copy(canvasPixels, savedPixels);
+            }
+            Graphics2D graphics = canvas.createGraphics();
+            graphics.drawImage(raw, left, top, null);
+            graphics.dispose();
+            previousArea = new Rectangle(left, top, raw.getWidth(), raw.getHeight());
+            previousDisposal = disposal;
+
+            BufferedImage frame = buffers.lease(canvas.getWidth(), canvas.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            System.arraycopy(canvasPixels, 0, PixelAccess.argb(frame), 0, canvasPixels.length);
+            return frame;
+        }
+
+        private void dispose() {
+            if (previousArea == null) {
+                return;
+            }
+            if (previousDisposal.equals("restoreToBackgroundColor")) {
+                // Cleared to transparent, as browsers do, rather than to the background colour
+                Rectangle area = previousArea.intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+                for (int y = area.y; y < area.y + area.height; y++) {
+                    Arrays.fill(canvasPixels, y * canvas.getWidth() + area.x, y * canvas.getWidth() + area.x + area.width, 0);
+                }
+            } else if (previousDisposal.equals("restoreToPrevious") && savedPixels != null) {
+                System.arraycopy(savedPixels, 0, canvasPixels, 0, canvasPixels.length);
+            }
+        }
+
+        private static int[] copy(int[] source, int[] target) {
+            System.arraycopy(source, 0, target, 0, source.length);
+            return target;
+        }
+
+        private static IIOMetadataNode child(IIOMetadataNode parent, String name) {
+            for (int i = 0; i < parent.getLength(); i++) {
+                if (parent.item(i) instanceof IIOMetadataNode node && node.getNodeName().equals(name)) {
+                    return node;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String name(int index) {
+            return String.format(Locale.ROOT, "%s_%05d", baseName, index + 1);
+        }
+
+        @Override
+        public long pixelEstimate() {
+            return (long) canvas.getWidth() * canvas.getHeight() * count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            stream.close();
+        }
+    }
+
+    private static ImageReader reader(ImageInputStream stream, File file) throws IOException {
+        if (stream == null) {
+            throw new IOException("No image stream for " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(stream, false, false);
+        return reader;
+    }
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--input":
+                    options.input = new File(CliOptions.value(args, ++i, arg));
+                    break;
+                case "--output":
+                    options.output = new File(CliOptions.value(args, ++i, arg));
+                    break;
+                case "--operation":
+                    options.operation = CliOptions.enumValue(Operation.class, args, ++i, arg, "operation");
+                    break;
+                case "--hue":
+                    options.hue = CliOptions.intValue(args, ++i, arg);
+                    break;
+                case "--saturation":
+                    options.saturation = CliOptions.intValue(args, ++i, arg);
+                    break;
+                case "--brightness":
+                    options.brightness = CliOptions.intValue(args, ++i, arg);
+                    break;
+                case "--workers":
+                    options.workers = Math.max(1, CliOptions.intValue(args, ++i, arg));
+                    break;
+                case "--queue":
+                    options.queueCapacity = Math.max(1, CliOptions.intValue(args, ++i, arg));
+                    break;
+                case "--metrics":
+                    options.metrics = new File(CliOptions.value(args, ++i, arg));
+                    break;
+                case "--compression":
+                    options.export = options.export.withCompressionLevel(CliOptions.compressionLevel(args, ++i, arg));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (options.input == null || options.output == null) {
+            throw new IllegalArgumentException("--input and --output are required");
+        }
+        return options;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: SequenceProcessor --input DIR|FILE.gif --output DIR [--operation hsb|outline]");
+        System.err.println("       [--hue DEG] [--saturation PCT] [--brightness PCT]");
+        System.err.println("       [--workers N]   frames processed at once   [--queue N]   frames between stages");
+        System.err.println("       [--metrics FILE] [--compression 0-9]");
+    }
+}
@@ -0,0 +1,323 @@
+import java.util.Arrays;
+import java.util.Random;
+
+// The per-pixel inner loops of the processing stages, each in a scalar version and a Vector API
+// version (VectorKernels). The vector versions run when the JVM was started with
+// --add-modules jdk.incubator.vector on hardware with at least 128-bit vectors; otherwise, or with
+// -Dimageedit.simd=scalar, the scalar loops run. -Dimageedit.simd=vector insists on the vector versions,
+// and -Dimageedit.simd=check runs both on every call and fails on the first difference.
+// Run this class to compare the two on random data: java --add-modules jdk.incubator.vector SimdKernels
+public final class SimdKernels {
+    public enum Mode { AUTO, SCALAR, VECTOR, CHECK }
+
+    private static final boolean MODULE_PRESENT = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    private static final Mode MODE = Mode.valueOf(System.getProperty("imageedit.simd", "auto").toUpperCase());
+    private static final boolean VECTOR = selectVector();
+    private static final boolean CHECK = MODE == Mode.CHECK;
+
+    private SimdKernels() {
+    }
+
+    private static boolean selectVector() {
+        if (MODE == Mode.SCALAR) {
+            return false;
+        }
+        if (!MODULE_PRESENT) {
+            if (MODE != Mode.AUTO) {
+                throw new IllegalStateException("-Dimageedit.simd=" + MODE.name().toLowerCase()
+                        + " needs the JVM option --add-modules jdk.incubator.vector");
+            }
+            return false;
+        }
+        return MODE != Mode.AUTO || VectorKernels.worthwhile();
+    }
+
+    public static boolean isVectorized() {
+        return VECTOR;
+    }
+
+    public static String describe() {
+        return VECTOR ? "vector (" + VectorKernels.describe() + (CHECK ? ", checked" : "") + ")" : "scalar";
+    }
+
+    // Gray levels, as getRGB on the TYPE_BYTE_GRAY conversion would report them, of count packed RGB pixels
+    public static void grayLevels(int[] rgb, int offset, int[] levels, int count) {
+        if (!VECTOR) {
+            scalarGrayLevels(rgb, offset, levels, 0, count);
+        } else if (!CHECK) {
+            VectorKernels.grayLevels(rgb, offset, levels, count, PixelAccess.grayDecodeTable());
+        } else {
+            int[] expected = new int[count];
+            scalarGrayLevels(rgb, offset, expected, 0, count);
+            VectorKernels.grayLevels(rgb, offset, levels, count, PixelAccess.grayDecodeTable());
+            verify("grayLevels", Arrays.mismatch(expected, 0, count, levels, 0, count));
+        }
+    }
+
+    // Raw TYPE_BYTE_GRAY samples of count packed RGB pixels, the same as Java2D's conversion stores
+    public static void graySamples(int[] rgb, int offset, byte[] samples, int samplesOffset, int count) {
+        if (!VECTOR) {
+            scalarGraySamples(rgb, offset, samples, samplesOffset, count);
+        } else if (!CHECK) {
+            VectorKernels.graySamples(rgb, offset, samples, samplesOffset, count);
+        } else {
+            byte[] expected = new byte[count];
+            scalarGraySamples(rgb, offset, expected, 0, count);
+            VectorKernels.graySamples(rgb, offset, samples, samplesOffset, count);
+            verify("graySamples", Arrays.mismatch(expected, 0, count, samples, samplesOffset, samplesOffset + count));
+        }
+    }
+
+    // Squared Sobel gradient magnitude of the middle row into squared[1, width - 1)
+    public static void sobelSquared(int[] above, int[] row, int[] below, int width, int[] squared) {
+        if (!VECTOR) {
+            scalarSobelSquared(above, row, below, 1, width, squared);
+        } else if (!CHECK) {
+            VectorKernels.sobelSquared(above, row, below, width, squared);
+        } else {
+            int[] expected = new int[width];
+            scalarSobelSquared(above, row, below, 1, width, expected);
+            VectorKernels.sobelSquared(above, row, below, width, squared);
+            verify("sobelSquared", Arrays.mismatch(expected, 1, Math.max(1, width - 1), squared, 1, Math.max(1, width - 1)));
+        }
+    }
+
+    // Replaces squared magnitudes in [from, to) with min(255, (int) sqrt(value))
+    public static void magnitudes(int[] squared, int from, int to) {
+        if (!VECTOR) {
+            scalarMagnitudes(squared, from, to);
+        } else if (!CHECK) {
+            VectorKernels.magnitudes(squared, from, to);
+        } else {
+            int[] expected = Arrays.copyOfRange(squared, from, to);
+            scalarMagnitudes(expected, 0, expected.length);
+            VectorKernels.magnitudes(squared, from, to);
+            verify("magnitudes", Arrays.mismatch(expected, 0, expected.length, squared, from, to));
+        }
+    }
+
+    // Bit k set where values[offset + k] >= minimum, for count <= 64 values
+    public static long thresholdInts(int[] values, int offset, int count, int minimum) {
+        if (!VECTOR) {
+            return scalarThresholdInts(values, offset, count, minimum);
+        }
+        long bits = VectorKernels.thresholdInts(values, offset, count, minimum);
+        if (CHECK) {
+            verify("thresholdInts", bits, scalarThresholdInts(values, offset, count, minimum));
+        }
+        return bits;
+    }
+
+    // Bit k set where the unsigned byte samples[offset + k] >= minimum, for count <= 64 samples
+    public static long thresholdSamples(byte[] samples, int offset, int count, int minimum) {
+        if (minimum <= 0 || minimum > 255) {
+            return minimum <= 0 && count > 0 ? -1L >>> (64 - count) : 0;
+        }
+        if (!VECTOR) {
+            return scalarThresholdSamples(samples, offset, count, minimum);
+        }
+        long bits = VectorKernels.thresholdSamples(samples, offset, count, minimum);
+        if (CHECK) {
+            verify("thresholdSamples", bits, scalarThresholdSamples(samples, offset, count, minimum));
+        }
+        return bits;
+    }
+
+    // Bit k set where every channel of rgb[offset + k] is above its threshold, for count <= 64 pixels
+    public static long segmentationBits(int[] rgb, int offset, int count, int red, int green, int blue) {
+        if (!VECTOR) {
+            return scalarSegmentationBits(rgb, offset, count, red, green, blue);
+        }
+        long bits = VectorKernels.segmentationBits(rgb, offset, count, red, green, blue);
+        if (CHECK) {
+            verify("segmentationBits", bits, scalarSegmentationBits(rgb, offset, count, red, green, blue));
+        }
+        return bits;
+    }
+
+    // ColorTransform's HSB adjustment of src[from, to) into dst[from, to)
+    public static void hsb(int[] src, int[] dst, int from, int to, float hueShift, float saturationScale, float brightnessScale) {
+        if (!VECTOR) {
+            scalarHsb(src, dst, from, to, hueShift, saturationScale, brightnessScale);
+        } else if (!CHECK) {
+            VectorKernels.hsb(src, dst, from, to, hueShift, saturationScale, brightnessScale);
+        } else {
+            int[] expected = new int[dst.length];
+            scalarHsb(src, expected, from, to, hueShift, saturationScale, brightnessScale);
+            VectorKernels.hsb(src, dst, from, to, hueShift, saturationScale, brightnessScale);
+            verify("hsb", Arrays.mismatch(expected, from, to, dst, from, to));
+        }
+    }
+
+    private static void verify(String kernel, int mismatch) {
+        if (mismatch >= 0) {
+            throw new IllegalStateException("Vector " + kernel + " differs from the scalar loop at element " + mismatch);
+        }
+    }
+
+    private static void verify(String kernel, long actual, long expected) {
+        if (actual != expected) {
+            verify(kernel, Long.numberOfTrailingZeros(actual ^ expected));
+        }
+    }
+
+    // The scalar loops. The vector kernels also use them for the elements that do not fill a vector.
+
+    static void scalarGrayLevels(int[] rgb, int offset, int[] levels, int levelsOffset, int count) {
+        for (int k = 0; k < count; k++) {
+            levels[levelsOffset + k] = PixelAccess.grayLevel(graySample(rgb[offset + k]));
+        }
+    }
+
+    static void scalarGraySamples(int[] rgb, int offset, byte[] samples, int samplesOffset, int count) {
+        for (int k = 0; k < count; k++) {
+            samples[samplesOffset + k] = (byte) graySample(rgb[offset + k]);
+        }
+    }
+
+    // Same weights and rounding as Java2D's RGB to ByteGray blit
+    private static int graySample(int rgb) {
+        return (77 * ((rgb >> 16) & 0xFF) + 150 * ((rgb >> 8) & 0xFF) + 29 * (rgb & 0xFF) + 128) >> 8;
+    }
+
+    static void scalarSobelSquared(int[] above, int[] row, int[] below, int from, int width, int[] squared) {
+        for (int x = from; x < width - 1; x++) {
+            int px00 = above[x - 1], px10 = above[x], px20 = above[x + 1];
+            int px01 = row[x - 1], px21 = row[x + 1];
+            int px02 = below[x - 1], px12 = below[x], px22 = below[x + 1];
+            int gx = (px20 + 2 * px21 + px22) - (px00 + 2 * px01 + px02);
+            int gy = (px02 + 2 * px12 + px22) - (px00 + 2 * px10 + px20);
+            squared[x] = gx * gx + gy * gy;
+        }
+    }
+
+    static void scalarMagnitudes(int[] squared, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int value = (int) Math.sqrt(squared[i]);
+            squared[i] = value > 255 ? 255 : value;
+        }
+    }
+
+    static long scalarThresholdInts(int[] values, int offset, int count, int minimum) {
+        long bits = 0;
+        for (int k = 0; k < count; k++) {
+            if (values[offset + k] >= minimum) {
+                bits |= 1L << k;
+            }
+        }
+        return bits;
+    }
+
+    static long scalarThresholdSamples(byte[] samples, int offset, int count, int minimum) {
+        long bits = 0;
+        for (int k = 0; k < count; k++) {
+            if ((samples[offset + k] & 0xFF) >= minimum) {
+                bits |= 1L << k;
+            }
+        }
+        return bits;
+    }
+
+    static long scalarSegmentationBits(int[] rgb, int offset, int count, int red, int green, int blue) {
+        long bits = 0;
+        for (int k = 0; k < count; k++) {
+            int pixel = rgb[offset + k];
+            if (((pixel >> 16) & 0xFF) > red && ((pixel >> 8) & 0xFF) > green && (pixel & 0xFF) > blue) {
+                bits |= 1L << k;
+            }
+        }
+        return bits;
+    }
+
+    static void scalarHsb(int[] src, int[] dst, int from, int to, float hueShift, float saturationScale, float brightnessScale) {
+        for (int i = from; i < to; i++) {
+            dst[i] = ColorTransform.hsbPixel(src[i], hueShift, saturationScale, brightnessScale);
+        }
+    }
+
+    // Self-check: every kernel in both versions on random data, including the edge cases of the HSB maths
+    public static void main(String[] args) {
+        if (!MODULE_PRESENT) {
+            System.err.println("Start the JVM with --add-modules jdk.incubator.vector to compare the vector kernels");
+            System.exit(2);
+        }
+        System.out.println("Vector kernels: " + VectorKernels.describe());
+        Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 1);
+        int failures = 0;
+        for (int width : new int[]{1, 2, 3, 7, 63, 64, 65, 1000, 4097}) {
+            int[] rgb = random.ints(width * 3L).toArray();
+            int[] above = Arrays.copyOfRange(rgb, 0, width);
+            int[] row = Arrays.copyOfRange(rgb, width, 2 * width);
+            int[] below = Arrays.copyOfRange(rgb, 2 * width, 3 * width);
+            for (int[] levels : new int[][]{above, row, below}) {
+                for (int x = 0; x < width; x++) {
+                    levels[x] &= 0xFF;
+                }
+            }
+            int[] scalarInts = new int[width];
+            int[] vectorInts = new int[width];
+            scalarGrayLevels(rgb, width, scalarInts, 0, width);
+            VectorKernels.grayLevels(rgb, width, vectorInts, width, PixelAccess.grayDecodeTable());
+            failures += report("grayLevels", width, Arrays.equals(scalarInts, vectorInts));
+
+            byte[] scalarBytes = new byte[width + 5];
+            byte[] vectorBytes = new byte[width + 5];
+            scalarGraySamples(rgb, 0, scalarBytes, 5, width);
+            VectorKernels.graySamples(rgb, 0, vectorBytes, 5, width);
+            failures += report("graySamples", width, Arrays.equals(scalarBytes, vectorBytes));
+
+            Arrays.fill(scalarInts, 0);
+            Arrays.fill(vectorInts, 0);
+            scalarSobelSquared(above, row, below, 1, width, scalarInts);
+            VectorKernels.sobelSquared(above, row, below, width, vectorInts);
+            failures += report("sobelSquared", width, Arrays.equals(scalarInts, vectorInts));
+
+            scalarMagnitudes(scalarInts, 0, width);
+            VectorKernels.magnitudes(vectorInts, 0, width);
+            failures += report("magnitudes", width, Arrays.equals(scalarInts, vectorInts));
+
+            random.nextBytes(scalarBytes);
+            for (int x = 0; x < width; x += 64) {
+                int count = Math.min(64, width - x);
+                int minimum = 1 + random.nextInt(255);
+                failures += report("thresholdInts", width, (scalarThresholdInts(rgb, x, count, minimum << 20)
+                        == VectorKernels.thresholdInts(rgb, x, count, minimum << 20)));
+                failures += report("thresholdSamples", width, (scalarThresholdSamples(scalarBytes, x, count, minimum)
+                        == VectorKernels.thresholdSamples(scalarBytes, x, count, minimum)));
+                failures += report("segmentationBits", width, (scalarSegmentationBits(rgb, x, count, 100, 100, 100)
+                        == VectorKernels.segmentationBits(rgb, x, count, 100, 100, 100)));
+            }
+        }
+
+        // Every possible squared Sobel magnitude
+        int[] squares = new int[2 * 1020 * 1020 + 1];
+        Arrays.setAll(squares, i -> i);
+        int[] scalarRoots = squares.clone();
+        scalarMagnitudes(scalarRoots, 0, scalarRoots.length);
+        VectorKernels.magnitudes(squares, 0, squares.length);
+        failures += report("magnitudes", squares.length, Arrays.equals(scalarRoots, squares));
+
+        // Every colour, for a spread of settings including the slider extremes
+        int[] colours = new int[1 << 24];
+        Arrays.setAll(colours, i -> i);
+        int[] expected = new int[colours.length];
+        int[] actual = new int[colours.length];
+        int[][] settings = {{0, 100, 100}, {0, 0, 0}, {360, 200, 200}, {180, 50, 150}, {90, 200, 0}, {1, 99, 101}, {-45, 120, 80}};
+        for (int[] setting : settings) {
+            float hueShift = setting[0] / 360.0f, saturationScale = setting[1] / 100.0f, brightnessScale = setting[2] / 100.0f;
+            scalarHsb(colours, expected, 0, colours.length, hueShift, saturationScale, brightnessScale);
+            VectorKernels.hsb(colours, actual, 0, colours.length, hueShift, saturationScale, brightnessScale);
+            failures += report("hsb " + Arrays.toString(setting), colours.length, Arrays.equals(expected, actual));
+        }
+        System.out.println(failures == 0 ? "All kernels match" : failures + " mismatches");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static int report(String kernel, int size, boolean matches) {
+        if (!matches) {
+            System.out.println(kernel + " (size " + size + ") differs");
+            return 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,38 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// One run of a processing stage, as recorded by StageTimer. Enabled by default, so any recording shows
+// it; record with e.g. java -XX:StartFlightRecording=filename=stages.jfr and inspect with
+// jfr print --events imageedit.Stage stages.jfr
+@Name("imageedit.Stage")
+@Label("Image Processing Stage")
+@Category("ImageEdit")
+@Description("A processing stage run over an image")
+@StackTrace(false)
+public class StageEvent extends Event {
+    @Label("Stage")
+    public String stage;
+
+    @Label("Width")
+    public int width;
+
+    @Label("Height")
+    public int height;
+
+    @Label("Pixels")
+    public long pixels;
+
+    @Label("Threads")
+    @Description("Parallelism of the compute pool the stage spreads its tiles over")
+    public int threads;
+
+    @Label("Allocated")
+    @Description("Heap allocated by the thread that ran the stage, not counting tiles run on other pool threads")
+    @DataAmount
+    public long allocated;
+}
@@ -0,0 +1,179 @@
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// In-process metrics: named counters and latency histograms, cheap enough to update on every stage.
+// snapshotJson() gives everything as one JSON object. -Dimageedit.metricsLogSeconds=N prints that
+// snapshot every N seconds, or call startLogging.
+public final class StageMetrics {
+    private static final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService logger;
+
+    static {
+        int seconds = Integer.getInteger("imageedit.metricsLogSeconds", 0);
+        if (seconds > 0) {
+            startLogging(seconds);
+        }
+    }
+
+    private StageMetrics() {
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long amount) {
+        counters.computeIfAbsent(name, key -> new AtomicLong()).addAndGet(amount);
+    }
+
+    public static void recordNanos(String name, long nanos) {
+        histograms.computeIfAbsent(name, key -> new Histogram()).record(nanos);
+    }
+
+    // What StageTimer records for each run of a stage
+    static void recordStage(String stage, long nanos, long pixels, long allocated) {
+        recordNanos("stage." + stage, nanos);
+        add("stage." + stage + ".pixels", pixels);
+        add("stage." + stage + ".allocatedBytes", allocated);
+    }
+
+    public static long counter(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public static Histogram.Summary histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram == null ? new Histogram().summary() : histogram.summary();
+    }
+
+    public static void reset() {
+        counters.clear();
+        histograms.clear();
+    }
+
+    // {"counters":{...},"histograms":{"stage.sobel":{"count":..,"meanMs":..,...}}}, names sorted
+    public static String snapshotJson() {
+        StringBuilder json = new StringBuilder("{\"counters\":{");
+        String separator = "";
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            json.append(separator).append(quote(entry.getKey())).append(':').append(entry.getValue().get());
+            separator = ",";
+        }
+        json.append("},\"histograms\":{");
+        separator = "";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram.Summary summary = entry.getValue().summary();
+            json.append(separator).append(quote(entry.getKey())).append(String.format(Locale.ROOT,
+                    ":{\"count\":%d,\"meanMs\":%.3f,\"p50Ms\":%.3f,\"p90Ms\":%.3f,\"p99Ms\":%.3f,\"maxMs\":%.3f}",
+                    summary.count(), summary.meanMillis(), summary.p50Millis(), summary.p90Millis(),
+                    summary.p99Millis(), summary.maxMillis()));
+            separator = ",";
+        }
+        return json.append("}}").toString();
+    }
+
+    // Prints the snapshot to standard output every period until stopLogging
+    public static synchronized void startLogging(long periodSeconds) {
+        stopLogging();
+        logger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.scheduleAtFixedRate(() -> System.out.println("metrics " + snapshotJson()),
+                periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopLogging() {
+        if (logger != null) {
+            logger.shutdownNow();
+            logger = null;
+        }
+    }
+
+    private static String quote(String text) {
+        return '"' + text.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    // Log-linear buckets over nanoseconds: each power of two is split into 8 buckets, so a
+    // percentile is within 12.5% of the true value, in a fixed 4 KB whatever the count
+    public static final class Histogram {
+        private static final int SUB_BUCKETS = 8;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public record Summary(long count, double meanMillis, double p50Millis, double p90Millis,
+                              double p99Millis, double maxMillis) {
+        }
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        public Summary summary() {
+            long total = count.get();
+            if (total == 0) {
+                return new Summary(0, 0, 0, 0, 0, 0);
+            }
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            long largest = max.get();
+            return new Summary(total, sum.get() / 1e6 / total, percentile(counts, 0.50, largest) / 1e6,
+                    percentile(counts, 0.90, largest) / 1e6, percentile(counts, 0.99, largest) / 1e6, largest / 1e6);
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return (exponent - 2) * SUB_BUCKETS + sub;
+        }
+
+        // Midpoint of the bucket holding the value, never above the largest value seen
+        private static double percentile(long[] counts, double fraction, long largest) {
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min(largest, midpoint(i));
+                }
+            }
+            return largest;
+        }
+
+        private static double midpoint(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + 2;
+            int sub = bucket % SUB_BUCKETS;
+            double low = (double) (SUB_BUCKETS + sub) * (1L << (exponent - 3));
+            return low + (1L << (exponent - 3)) / 2.0;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+// Times one run of a processing stage: a JFR StageEvent plus the stage's latency histogram, pixel
+// counter and allocation counter in StageMetrics. Allocation is counted on the thread that runs the
+// stage only; a process-wide count would take in whatever other threads allocate meanwhile.
+//   try (StageTimer timer = StageTimer.start("sobel", image)) { ... }
+public final class StageTimer implements AutoCloseable {
+    private static final com.sun.management.ThreadMXBean THREADS = allocationBean();
+
+    private final String stage;
+    private final int width;
+    private final int height;
+    private final long startNanos;
+    private final long startAllocated;
+    private final StageEvent event;
+
+    private StageTimer(String stage, int width, int height) {
+        this.stage = stage;
+        this.width = width;
+        this.height = height;
+        this.event = new StageEvent();
+        this.startAllocated = allocatedBytes();
+        event.begin();
+        this.startNanos = System.nanoTime();
+    }
+
+    public static StageTimer start(String stage, int width, int height) {
+        return new StageTimer(stage, width, height);
+    }
+
+    public static StageTimer start(String stage, BufferedImage image) {
+        return new StageTimer(stage, image.getWidth(), image.getHeight());
+    }
+
+    public static StageTimer start(String stage, BitMask mask) {
+        return new StageTimer(stage, mask.width(), mask.height());
+    }
+
+    @Override
+    public void close() {
+        long nanos = System.nanoTime() - startNanos;
+        event.end();
+        long pixels = (long) width * height;
+        long allocated = startAllocated < 0 ? 0 : Math.max(0, allocatedBytes() - startAllocated);
+        StageMetrics.recordStage(stage, nanos, pixels, allocated);
+        if (event.shouldCommit()) {
+            event.stage = stage;
+            event.width = width;
+            event.height = height;
+            event.pixels = pixels;
+            event.threads = ComputePool.getParallelism();
+            event.allocated = allocated;
+            event.commit();
+        }
+    }
+
+    // The current thread's, so tiles the stage hands to other pool threads are not included; -1 when unsupported
+    private static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean allocation && allocation.isThreadAllocatedMemorySupported()
+                && allocation.isThreadAllocatedMemoryEnabled()) {
+            return allocation;
+        }
+        return null;
+    }
+}
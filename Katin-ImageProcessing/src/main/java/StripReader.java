@@ -0,0 +1,359 @@
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Decodes an image a band of full-width rows at a time, so only the requested rows are ever in memory.
+// Strips must be requested top to bottom; consecutive strips may overlap.
+public abstract class StripReader implements Closeable {
+    public abstract int width();
+
+    public abstract int height();
+
+    // Rows y to y + rows - 1 as an image of the given height. getRGB on it reports the same
+    // values as on the fully decoded image.
+    public abstract BufferedImage read(int y, int rows) throws IOException;
+
+    public static StripReader open(File file) throws IOException {
+        StripReader png = PngStripReader.tryOpen(file);
+        return png != null ? png : new RegionStripReader(file);
+    }
+
+    // Generic path: ImageReader with a source region. Works for every format ImageIO reads, but
+    // stream formats such as PNG and JPEG are decoded from the start again for every strip.
+    static final class RegionStripReader extends StripReader {
+        private final ImageInputStream stream;
+        private final ImageReader reader;
+        private final int width;
+        private final int height;
+
+        RegionStripReader(File file) throws IOException {
+            stream = ImageIO.createImageInputStream(file);
+            if (stream == null) {
+                throw new IIOException("Cannot open " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                stream.close();
+                throw new IIOException("Unsupported image format: " + file);
+            }
+            reader = readers.next();
+            reader.setInput(stream, true, true);
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+        }
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+
+        @Override
+        public BufferedImage read(int y, int rows) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y, width, rows));
+            return reader.read(0, param);
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            stream.close();
+        }
+    }
+
+    // Row-streaming decoder for the common non-interlaced 8-bit PNG layouts, so a whole image costs
+    // one pass over the file. Gray decodes to TYPE_BYTE_GRAY like ImageIO does; colour decodes to
+    // TYPE_INT_RGB/TYPE_INT_ARGB, which report the same getRGB values as ImageIO's byte layouts.
+    static final class PngStripReader extends StripReader {
+        private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+        private static final int GRAY = 0, RGB = 2, PALETTE = 3, RGBA = 6;
+
+        private final DataInputStream in;
+        private final int width;
+        private final int height;
+        private final int colorType;
+        private final int channels;
+        private final int[] palette;
+        private final boolean paletteAlpha;
+        private final Inflater inflater = new Inflater();
+        private final InputStream pixels;
+        private byte[] row;
+        private byte[] prior;
+        private int nextRow;
+        // Last strip handed out, kept to serve rows that the next strip overlaps
+        private BufferedImage previous;
+        private int previousY;
+
+        private PngStripReader(DataInputStream in, IdatInputStream idat, int width, int height, int colorType,
+                               int[] palette, boolean paletteAlpha) {
+            this.in = in;
+            this.width = width;
+            this.height = height;
+            this.colorType = colorType;
+            this.channels = colorType == RGB ? 3 : colorType == RGBA ? 4 : 1;
+            this.palette = palette;
+            this.paletteAlpha = paletteAlpha;
+            this.row = new byte[width * channels];
+            this.prior = new byte[width * channels];
+            this.pixels = new InflaterInputStream(idat, inflater, 1 << 16);
+        }
+
+        // Null if the file is not a PNG this reader handles
+        static PngStripReader tryOpen(File file) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            try {
+                if (in.readLong() != SIGNATURE || in.readInt() != 13 || in.readInt() != chunkType("IHDR")) {
+                    in.close();
+                    return null;
+                }
+                int width = in.readInt();
+                int height = in.readInt();
+                int bitDepth = in.readUnsignedByte();
+                int colorType = in.readUnsignedByte();
+                in.readUnsignedByte(); // Compression, always deflate
+                in.readUnsignedByte(); // Filter method, always adaptive
+                int interlace = in.readUnsignedByte();
+                in.readInt(); // CRC
+                if (bitDepth != 8 || interlace != 0
+                        || (colorType != GRAY && colorType != RGB && colorType != PALETTE && colorType != RGBA)) {
+                    in.close();
+                    return null;
+                }
+
+                // Walk the chunks up to the first IDAT
+                int[] palette = null;
+                boolean paletteAlpha = false;
+                while (true) {
+                    int length = in.readInt();
+                    int type = in.readInt();
+                    if (type == chunkType("IDAT")) {
+                        return new PngStripReader(in, new IdatInputStream(in, length), width, height, colorType, palette, paletteAlpha);
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    in.readInt(); // CRC
+                    if (type == chunkType("PLTE")) {
+                        palette = new int[256];
+                        for (int i = 0; i < length / 3; i++) {
+                            palette[i] = 0xFF000000 | (data[3 * i] & 0xFF) << 16 | (data[3 * i + 1] & 0xFF) << 8 | (data[3 * i + 2] & 0xFF);
+                        }
+                    } else if (type == chunkType("iCCP")) {
+                        // ImageIO decodes into the embedded colour space, which changes what getRGB reports
+                        in.close();
+                        return null;
+                    } else if (type == chunkType("tRNS")) {
+                        if (colorType != PALETTE || palette == null) {
+                            // A transparent colour key makes ImageIO add an alpha channel; leave that to it
+                            in.close();
+                            return null;
+                        }
+                        for (int i = 0; i < Math.min(length, 256); i++) {
+                            palette[i] = (data[i] & 0xFF) << 24 | (palette[i] & 0xFFFFFF);
+                        }
+                        paletteAlpha = true;
+                    }
+                }
+            } catch (EOFException e) {
+                in.close();
+                return null;
+            } catch (IOException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+
+        @Override
+        public BufferedImage read(int y, int rows) throws IOException {
+            if (y < 0 || rows <= 0 || y + rows > height) {
+                throw new IllegalArgumentException("Rows " + y + "+" + rows + " outside 0.." + height);
+            }
+            if (previous != null && y < previousY) {
+                throw new IllegalStateException("Strips must be read top to bottom");
+            }
+            BufferedImage strip = new BufferedImage(width, rows, stripType());
+            if (previous != null && y < nextRow) {
+                // Overlap with the last strip; setRect clips to the rows both have
+                strip.getRaster().setRect(0, previousY - y, previous.getRaster());
+            }
+            while (nextRow < y) {
+                decodeRow(); // Rows above the strip that nobody asked for
+            }
+            for (int r = nextRow - y; r < rows; r++) {
+                decodeRow();
+                store(strip, r);
+            }
+            previous = strip;
+            previousY = y;
+            return strip;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+
+        private int stripType() {
+            if (colorType == GRAY) {
+                return BufferedImage.TYPE_BYTE_GRAY;
+            }
+            return colorType == RGBA || paletteAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        }
+
+        private void decodeRow() throws IOException {
+            byte[] recycled = prior;
+            prior = row;
+            row = recycled;
+            int filter = pixels.read();
+            if (filter < 0) {
+                throw new EOFException("PNG data ends at row " + nextRow);
+            }
+            readFully(pixels, row);
+            int bpp = channels;
+            int length = row.length;
+            switch (filter) {
+                case 0:
+                    break;
+                case 1:
+                    for (int j = bpp; j < length; j++) {
+                        row[j] += row[j - bpp];
+                    }
+                    break;
+                case 2:
+                    for (int j = 0; j < length; j++) {
+                        row[j] += prior[j];
+                    }
+                    break;
+                case 3:
+                    for (int j = 0; j < length; j++) {
+                        int a = j >= bpp ? row[j - bpp] & 0xFF : 0;
+                        row[j] += (byte) ((a + (prior[j] & 0xFF)) >> 1);
+                    }
+                    break;
+                case 4:
+                    for (int j = 0; j < length; j++) {
+                        int a = j >= bpp ? row[j - bpp] & 0xFF : 0;
+                        int c = j >= bpp ? prior[j - bpp] & 0xFF : 0;
+                        row[j] += (byte) PngWriter.paethPredictor(a, prior[j] & 0xFF, c);
+                    }
+                    break;
+                default:
+                    throw new IIOException("Unknown PNG row filter " + filter + " at row " + nextRow);
+            }
+            nextRow++;
+        }
+
+        private void store(BufferedImage strip, int r) {
+            if (colorType == GRAY) {
+                byte[] data = ((DataBufferByte) strip.getRaster().getDataBuffer()).getData();
+                System.arraycopy(row, 0, data, r * width, width);
+                return;
+            }
+            int[] data = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
+            int offset = r * width;
+            switch (colorType) {
+                case RGB:
+                    for (int x = 0, j = 0; x < width; x++, j += 3) {
+                        data[offset + x] = (row[j] & 0xFF) << 16 | (row[j + 1] & 0xFF) << 8 | (row[j + 2] & 0xFF);
+                    }
+                    break;
+                case RGBA:
+                    for (int x = 0, j = 0; x < width; x++, j += 4) {
+                        data[offset + x] = (row[j + 3] & 0xFF) << 24 | (row[j] & 0xFF) << 16 | (row[j + 1] & 0xFF) << 8 | (row[j + 2] & 0xFF);
+                    }
+                    break;
+                default: // PALETTE
+                    for (int x = 0; x < width; x++) {
+                        data[offset + x] = palette[row[x] & 0xFF];
+                    }
+                    break;
+            }
+        }
+
+        private static void readFully(InputStream in, byte[] target) throws IOException {
+            for (int n = 0; n < target.length; ) {
+                int read = in.read(target, n, target.length - n);
+                if (read < 0) {
+                    throw new EOFException("PNG data is truncated");
+                }
+                n += read;
+            }
+        }
+
+        private static int chunkType(String name) {
+            return name.charAt(0) << 24 | name.charAt(1) << 16 | name.charAt(2) << 8 | name.charAt(3);
+        }
+
+        // The payloads of consecutive IDAT chunks as one stream
+        private static final class IdatInputStream extends InputStream {
+            private final DataInputStream in;
+            private int remaining;
+            private boolean done;
+
+            IdatInputStream(DataInputStream in, int firstLength) {
+                this.in = in;
+                this.remaining = firstLength;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] target, int offset, int length) throws IOException {
+                while (remaining == 0) {
+                    if (done) {
+                        return -1;
+                    }
+                    in.readInt(); // CRC of the chunk just finished
+                    int next = in.readInt();
+                    if (in.readInt() != chunkType("IDAT")) {
+                        done = true;
+                        return -1;
+                    }
+                    remaining = next;
+                }
+                int n = in.read(target, offset, Math.min(length, remaining));
+                if (n < 0) {
+                    throw new EOFException("PNG data is truncated");
+                }
+                remaining -= n;
+                return n;
+            }
+        }
+    }
+}
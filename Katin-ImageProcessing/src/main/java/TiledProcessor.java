@@ -0,0 +1,81 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Out-of-core versions of the per-pixel operations for images too large to hold in memory.
+// The input is decoded in strips of full-width rows, each strip is processed in parallel and
+// streamed to a PNG, so peak heap depends on the strip size and the image width, not the height.
+public final class TiledProcessor {
+    // Pixels per strip; a strip costs about this many ints for the decoded rows plus the result
+    static final long STRIP_PIXELS = 1L << 22;
+
+    private TiledProcessor() {
+    }
+
+    // Rows per strip for an image of the given width
+    static int stripRows(int width) {
+        return (int) Math.max(1, STRIP_PIXELS / Math.max(1, width));
+    }
+
+    // Rough peak heap of a tiled run on an image of the given width, for callers that budget memory
+    static long workingSetBytes(int width) {
+        long pixels = (long) stripRows(width) * width;
+        return pixels * 4 * 3; // Decoded strip, the strip kept for overlap, and the result
+    }
+
+    // Same result as ImageProcessor.updateHSB on the whole image, written as an RGB PNG.
+    // compressionLevel is a Deflater level, -1 for the default.
+    public static void adjustHSB(File input, File output, int hue, int saturation, int brightness,
+                                 int compressionLevel) throws IOException {
+        try (StripReader reader = StripReader.open(input);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 1 << 16)) {
+            int width = reader.width();
+            int height = reader.height();
+            int stripRows = stripRows(width);
+            PngWriter writer = new PngWriter(out, width, height, PngWriter.Format.RGB, compressionLevel);
+            ColorTransform.Table table = ColorTransform.hsb(hue, saturation, brightness)
+                    .compile(ColorTransform.Accuracy.AUTO, (long) width * height);
+            try {
+                int[] result = new int[stripRows * width];
+                for (int y = 0; y < height; y += stripRows) {
+                    int rows = Math.min(stripRows, height - y);
+                    int[] source = PixelAccess.rgb(reader.read(y, rows));
+                    ComputePool.forEachTile(rows, ComputePool.tileRows(width),
+                            (startRow, endRow) -> table.apply(source, result, startRow * width, endRow * width));
+                    writer.writeRgbRows(result, 0, rows);
+                }
+            } finally {
+                table.release();
+            }
+            writer.finish();
+        }
+    }
+
+    // Same mask as EdgeDetector.detect on the whole image, written as a 1-bit PNG with edges in white
+    public static void detectEdges(File input, File output, int threshold, int compressionLevel) throws IOException {
+        try (StripReader reader = StripReader.open(input);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 1 << 16)) {
+            int width = reader.width();
+            int height = reader.height();
+            // At least a few rows per strip so the halo rows stay a small share of the work
+            int stripRows = Math.max(8, stripRows(width));
+            PngWriter writer = new PngWriter(out, width, height, PngWriter.Format.BILEVEL, compressionLevel);
+            for (int y = 0; y < height; y += stripRows) {
+                int rows = Math.min(stripRows, height - y);
+                // One halo row on each side gives the Sobel kernel its neighbours. The detector treats
+                // the first and last strip rows as image border, which is only kept where they really are.
+                int top = Math.max(0, y - 1);
+                int bottom = Math.min(height, y + rows + 1);
+                BufferedImage strip = reader.read(top, bottom - top);
+                BitMask mask = EdgeDetector.detect(strip, threshold);
+                for (int r = y; r < y + rows; r++) {
+                    writer.writeMaskRow(mask, r - top);
+                }
+            }
+            writer.finish();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Vector API versions of the SimdKernels loops. Only loaded when the jdk.incubator.vector module is
+// present, so nothing else may refer to this class directly. Every kernel gives exactly the result
+// of its scalar counterpart; the tail that does not fill a whole vector runs the scalar code.
+final class VectorKernels {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+    // Raw gray samples are written through a byte vector of the same shape, only its first lanes are used
+    private static final VectorMask<Byte> SAMPLE_LANES = BYTES.indexInRange(0, INTS.length());
+
+    private VectorKernels() {
+    }
+
+    // Vectors narrower than 128 bits run slower than the scalar loops
+    static boolean worthwhile() {
+        return INTS.vectorBitSize() >= 128 && INTS.length() == FLOATS.length();
+    }
+
+    static String describe() {
+        return INTS.vectorBitSize() + "-bit vectors, " + INTS.length() + " ints per vector";
+    }
+
+    private static IntVector graySample(IntVector rgb) {
+        IntVector r = rgb.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+        IntVector g = rgb.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+        IntVector b = rgb.and(0xFF);
+        return r.mul(77).add(g.mul(150)).add(b.mul(29)).add(128).lanewise(VectorOperators.LSHR, 8);
+    }
+
+    static void grayLevels(int[] rgb, int offset, int[] levels, int count, int[] decode) {
+        int i = 0;
+        for (int bound = INTS.loopBound(count); i < bound; i += INTS.length()) {
+            graySample(IntVector.fromArray(INTS, rgb, offset + i)).intoArray(levels, i);
+            // Gather the decoded levels, using the samples just stored as the index map
+            IntVector.fromArray(INTS, decode, 0, levels, i).intoArray(levels, i);
+        }
+        SimdKernels.scalarGrayLevels(rgb, offset + i, levels, i, count - i);
+    }
+
+    static void graySamples(int[] rgb, int offset, byte[] samples, int samplesOffset, int count) {
+        int i = 0;
+        for (int bound = INTS.loopBound(count); i < bound; i += INTS.length()) {
+            IntVector sample = graySample(IntVector.fromArray(INTS, rgb, offset + i));
+            ((ByteVector) sample.convertShape(VectorOperators.I2B, BYTES, 0)).intoArray(samples, samplesOffset + i, SAMPLE_LANES);
+        }
+        SimdKernels.scalarGraySamples(rgb, offset + i, samples, samplesOffset + i, count - i);
+    }
+
+    static void sobelSquared(int[] above, int[] row, int[] below, int width, int[] squared) {
+        int x = 1;
+        for (int bound = 1 + INTS.loopBound(Math.max(0, width - 2)); x < bound; x += INTS.length()) {
+            IntVector a0 = IntVector.fromArray(INTS, above, x - 1);
+            IntVector a1 = IntVector.fromArray(INTS, above, x);
+            IntVector a2 = IntVector.fromArray(INTS, above, x + 1);
+            IntVector r0 = IntVector.fromArray(INTS, row, x - 1);
+            IntVector r2 = IntVector.fromArray(INTS, row, x + 1);
+            IntVector b0 = IntVector.fromArray(INTS, below, x - 1);
+            IntVector b1 = IntVector.fromArray(INTS, below, x);
+            IntVector b2 = IntVector.fromArray(INTS, below, x + 1);
+            IntVector gx = a2.add(r2.add(r2)).add(b2).sub(a0.add(r0.add(r0)).add(b0));
+            IntVector gy = b0.add(b1.add(b1)).add(b2).sub(a0.add(a1.add(a1)).add(a2));
+            gx.mul(gx).add(gy.mul(gy)).intoArray(squared, x);
+        }
+        SimdKernels.scalarSobelSquared(above, row, below, x, width, squared);
+    }
+
+    static void magnitudes(int[] squared, int from, int to) {
+        int i = from;
+        // Squares of at most 255^2 are exact in a float, and its correctly rounded square root
+        // truncates to the same integer as the double one
+        for (int bound = from + INTS.loopBound(Math.max(0, to - from)); i < bound; i += INTS.length()) {
+            IntVector value = IntVector.fromArray(INTS, squared, i);
+            VectorMask<Integer> saturated = value.compare(VectorOperators.GE, 255 * 255);
+            IntVector root = ((IntVector) value.min(255 * 255).convert(VectorOperators.I2F, 0)
+                    .lanewise(VectorOperators.SQRT).convert(VectorOperators.F2I, 0));
+            root.blend(255, saturated).intoArray(squared, i);
+        }
+        SimdKernels.scalarMagnitudes(squared, i, to);
+    }
+
+    static long thresholdInts(int[] values, int offset, int count, int minimum) {
+        long bits = 0;
+        int k = 0;
+        for (int bound = INTS.loopBound(count); k < bound; k += INTS.length()) {
+            bits |= IntVector.fromArray(INTS, values, offset + k).compare(VectorOperators.GE, minimum).toLong() << k;
+        }
+        return bits | SimdKernels.scalarThresholdInts(values, offset + k, count - k, minimum) << k;
+    }
+
+    static long thresholdSamples(byte[] samples, int offset, int count, int minimum) {
+        long bits = 0;
+        int k = 0;
+        for (int bound = BYTES.loopBound(count); k < bound; k += BYTES.length()) {
+            bits |= ByteVector.fromArray(BYTES, samples, offset + k)
+                    .compare(VectorOperators.UNSIGNED_GE, (byte) minimum).toLong() << k;
+        }
+        return bits | SimdKernels.scalarThresholdSamples(samples, offset + k, count - k, minimum) << k;
+    }
+
+    static long segmentationBits(int[] rgb, int offset, int count, int red, int green, int blue) {
+        long bits = 0;
+        int k = 0;
+        for (int bound = INTS.loopBound(count); k < bound; k += INTS.length()) {
+            IntVector pixel = IntVector.fromArray(INTS, rgb, offset + k);
+            VectorMask<Integer> foreground = pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF).compare(VectorOperators.GT, red)
+                    .and(pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF).compare(VectorOperators.GT, green))
+                    .and(pixel.and(0xFF).compare(VectorOperators.GT, blue));
+            bits |= foreground.toLong() << k;
+        }
+        return bits | SimdKernels.scalarSegmentationBits(rgb, offset + k, count - k, red, green, blue) << k;
+    }
+
+    // ColorTransform's HSB adjustment, lane by lane. Every branch of Color.RGBtoHSB/HSBtoRGB is
+    // evaluated and the right one selected per lane, with the same float operations in the same
+    // order, so the results are bit-identical.
+    static void hsb(int[] src, int[] dst, int from, int to, float hueShift, float saturationScale, float brightnessScale) {
+        int i = from;
+        for (int bound = from + INTS.loopBound(Math.max(0, to - from)); i < bound; i += INTS.length()) {
+            IntVector pixel = IntVector.fromArray(INTS, src, i);
+            IntVector r = pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+            IntVector g = pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+            IntVector b = pixel.and(0xFF);
+            IntVector cmax = r.max(g).max(b);
+            IntVector cmin = r.min(g).min(b);
+            FloatVector max = toFloat(cmax);
+            FloatVector range = toFloat(cmax.sub(cmin));
+
+            FloatVector brightness = max.div(255.0f);
+            VectorMask<Float> black = cmax.compare(VectorOperators.EQ, 0).cast(FLOATS);
+            FloatVector saturation = range.div(max).blend(0f, black);
+            VectorMask<Float> gray = saturation.compare(VectorOperators.EQ, 0f);
+
+            FloatVector redc = toFloat(cmax.sub(r)).div(range);
+            FloatVector greenc = toFloat(cmax.sub(g)).div(range);
+            FloatVector bluec = toFloat(cmax.sub(b)).div(range);
+            VectorMask<Float> redMax = r.compare(VectorOperators.EQ, cmax).cast(FLOATS);
+            VectorMask<Float> greenMax = g.compare(VectorOperators.EQ, cmax).cast(FLOATS);
+            FloatVector hue = greenc.add(4.0f).sub(redc)
+                    .blend(redc.add(2.0f).sub(bluec), greenMax)
+                    .blend(bluec.sub(greenc), redMax)
+                    .div(6.0f);
+            hue = hue.add(1.0f, hue.compare(VectorOperators.LT, 0f));
+            hue = hue.blend(0f, gray);
+
+            // (hue + shift) % 1.0f: the remainder of a float by 1 is exact, value minus its truncation
+            FloatVector shifted = hue.add(hueShift);
+            hue = shifted.sub(truncate(shifted));
+            saturation = saturation.mul(saturationScale).min(1.0f);
+            brightness = brightness.mul(brightnessScale).min(1.0f);
+            hsbToRgb(hue, saturation, brightness).intoArray(dst, i);
+        }
+        SimdKernels.scalarHsb(src, dst, i, to, hueShift, saturationScale, brightnessScale);
+    }
+
+    private static IntVector hsbToRgb(FloatVector hue, FloatVector saturation, FloatVector brightness) {
+        FloatVector floorHue = truncate(hue);
+        floorHue = floorHue.sub(1.0f, hue.compare(VectorOperators.LT, floorHue));
+        FloatVector h = hue.sub(floorHue).mul(6.0f);
+        FloatVector f = h.sub(truncate(h)); // h is not negative, so truncating is flooring
+        FloatVector p = brightness.mul(saturation.neg().add(1.0f));
+        FloatVector q = brightness.mul(saturation.mul(f).neg().add(1.0f));
+        FloatVector t = brightness.mul(saturation.mul(f.neg().add(1.0f)).neg().add(1.0f));
+
+        IntVector v = toLevel(brightness);
+        IntVector pl = toLevel(p);
+        IntVector ql = toLevel(q);
+        IntVector tl = toLevel(t);
+        IntVector sector = (IntVector) h.convert(VectorOperators.F2I, 0);
+        // Sectors outside 0..5 leave all channels 0, as the switch in HSBtoRGB does
+        VectorMask<Integer> s0 = sector.compare(VectorOperators.EQ, 0);
+        VectorMask<Integer> s1 = sector.compare(VectorOperators.EQ, 1);
+        VectorMask<Integer> s2 = sector.compare(VectorOperators.EQ, 2);
+        VectorMask<Integer> s3 = sector.compare(VectorOperators.EQ, 3);
+        VectorMask<Integer> s4 = sector.compare(VectorOperators.EQ, 4);
+        VectorMask<Integer> s5 = sector.compare(VectorOperators.EQ, 5);
+        IntVector zero = IntVector.zero(INTS);
+        IntVector r = zero.blend(v, s0.or(s5)).blend(ql, s1).blend(pl, s2.or(s3)).blend(tl, s4);
+        IntVector g = zero.blend(tl, s0).blend(v, s1.or(s2)).blend(ql, s3).blend(pl, s4.or(s5));
+        IntVector b = zero.blend(pl, s0.or(s1)).blend(tl, s2).blend(v, s3.or(s4)).blend(ql, s5);
+        VectorMask<Integer> gray = saturation.compare(VectorOperators.EQ, 0f).cast(INTS);
+        r = r.blend(v, gray);
+        g = g.blend(v, gray);
+        b = b.blend(v, gray);
+        return r.lanewise(VectorOperators.LSHL, 16).or(g.lanewise(VectorOperators.LSHL, 8)).or(b);
+    }
+
+    private static FloatVector toFloat(IntVector values) {
+        return (FloatVector) values.convert(VectorOperators.I2F, 0);
+    }
+
+    // (int) (value * 255.0f + 0.5f)
+    private static IntVector toLevel(FloatVector value) {
+        return (IntVector) value.mul(255.0f).add(0.5f).convert(VectorOperators.F2I, 0);
+    }
+
+    private static FloatVector truncate(FloatVector value) {
+        return toFloat((IntVector) value.convert(VectorOperators.F2I, 0));
+    }
+}